@@ -0,0 +1,5 @@
+package flag;
+
+public enum CountLayout {
+    WORD_MAJOR, FRAME_MAJOR, HYBRID, PACKED
+}
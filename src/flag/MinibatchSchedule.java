@@ -0,0 +1,5 @@
+package flag;
+
+public enum MinibatchSchedule {
+    RANDOM, CYCLIC
+}
@@ -0,0 +1,5 @@
+package flag;
+
+public enum ParallelMode {
+    SERIAL, AD_LDA, HOGWILD, BLOCKED
+}
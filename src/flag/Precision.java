@@ -0,0 +1,5 @@
+package flag;
+
+public enum Precision {
+    DOUBLE, SINGLE
+}
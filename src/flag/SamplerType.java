@@ -0,0 +1,5 @@
+package flag;
+
+public enum SamplerType {
+    DENSE, SPARSE, ALIAS
+}
@@ -0,0 +1,280 @@
+package model;
+
+import java.util.Arrays;
+
+import util.AliasTable;
+import util.RandomSource;
+
+/**
+ * LightLDA-style Metropolis-Hastings kernel (Yuan et al. 2015). Every token
+ * runs a few cycles of a document proposal
+ *
+ * <pre>
+ * q_d(k) ~ nd[k] + alpha
+ * </pre>
+ *
+ * drawn in O(1) by picking a random role token of the document, and a word
+ * proposal for the resampled role
+ *
+ * <pre>
+ * q_w(k) ~ (nr[j][w][k] + b_j) / (nrsum[j][k] + RC[j] * b_j)
+ * </pre>
+ *
+ * drawn in O(1) from a sparse alias table over the non-zero frames of the word
+ * mixed with a dense smoothing table shared by the role. Both tables are
+ * stale snapshots that are rebuilt lazily; the acceptance ratio uses the
+ * snapshot actually drawn from, so the chain still targets the exact full
+ * conditional. The cost per token does not depend on K. Null slots left
+ * out of the model are neither picked by the document proposal nor part of
+ * the target.
+ *
+ * @author Yang Zhou
+ *
+ */
+class AliasRoleSampler extends RoleSampler {
+    private static final int MH_STEPS = 2; // doc/word proposal cycles per token
+    private static final int REFRESH = 4096; // draws between table rebuilds
+
+    private int K, R;
+    private double alpha;
+    private double[] betas;
+
+    private int[][][] wordFrames; // non-zero frames of each role word
+    private int[][] wordFrameSize;
+    private int[][] wordFreq; // occurrences of each role word
+    private WordProposal[][] proposals; // built on first use
+
+    private double[][] smooth; // b_j / (nrsum[j][k] + RC[j] * b_j) snapshot
+    private double[] smoothTotal;
+    private AliasTable[] smoothTable;
+    private int[] smoothDraws;
+
+    private int[] docRow; // document--frame counts of curDoc, kept in sync by update()
+    private int[] docFrame; // scratch for reading the non-zero frames
+    private int[] docCount;
+    private int curDoc = -1;
+
+    /**
+     * Snapshot of the non-zero part of one word's proposal.
+     */
+    private static class WordProposal {
+        int[] frames = new int[0]; // sorted in [0, size)
+        double[] mass = new double[0];
+        int size;
+        double total;
+        AliasTable table = new AliasTable(1);
+        int draws;
+    }
+
+    AliasRoleSampler(MultiRoleTlda lda, CountMatrix[] nr, CountMatrix nrsum, RandomSource rng) {
+        super(lda, nr, nrsum, rng);
+    }
+
+    @Override
+    void init() {
+        K = lda.K;
+        R = lda.R;
+        alpha = lda.alpha;
+        betas = lda.betas;
+
+        wordFrames = new int[R][][];
+        wordFrameSize = new int[R][];
+        wordFreq = new int[R][];
+        proposals = new WordProposal[R][];
+        for (int i = 0; i < R; i++) {
+            int V = nr[i].rows;
+            wordFrames[i] = new int[V][];
+            wordFrameSize[i] = new int[V];
+            wordFreq[i] = new int[V];
+            proposals[i] = new WordProposal[V];
+            for (int w = 0; w < V; w++) {
+                wordFrames[i][w] = new int[2];
+                for (int k = 0; k < K; k++) {
+                    int c = nr[i].get(w, k);
+                    if (c > 0) {
+                        wordFrames[i][w] = append(wordFrames[i][w], wordFrameSize[i][w]++, k);
+                        wordFreq[i][w] += c;
+                    }
+                }
+            }
+        }
+
+        smooth = new double[R][K];
+        smoothTotal = new double[R];
+        smoothTable = new AliasTable[R];
+        smoothDraws = new int[R];
+        for (int i = 0; i < R; i++) {
+            smoothTable[i] = new AliasTable(K);
+            buildSmoothing(i);
+        }
+
+        docRow = new int[K];
+        docFrame = new int[K];
+        docCount = new int[K];
+        curDoc = -1;
+    }
+
+    /**
+     * Re-read the non-zero frames if the counts were merged. The proposals
+     * are snapshots and stay until their next rebuild; the word frequencies
+     * do not change.
+     */
+    @Override
+    void beginSweep() {
+        if (merged)
+            syncFrameLists(wordFrames, wordFrameSize);
+        curDoc = -1;
+    }
+
+    @Override
+    int sample(int j, int m, int n) {
+        int[] doc = lda.documents[m];
+        int w = doc[n*R+j];
+        if (m != curDoc) {
+            // the proposals probe single frames of the document, which a
+            // sparse document row would answer by binary search
+            Arrays.fill(docRow, 0);
+            int size = lda.nd.readNonZero(m, docFrame, docCount);
+            for (int x = 0; x < size; x++)
+                docRow[docFrame[x]] = docCount[x];
+            curDoc = m;
+        }
+
+        // remove f_i from the count variables
+        int f = lda.r.get(j, m, n);
+        update(j, m, w, f, -1);
+
+        // tables are only rebuilt without the token, so that no proposal
+        // depends on its current frame
+        if (++smoothDraws[j] >= Math.max(REFRESH, K))
+            buildSmoothing(j);
+        WordProposal wp = proposals[j][w];
+        if (wp == null || wp.draws >= Math.min(REFRESH, wordFreq[j][w]))
+            wp = buildProposal(j, w);
+        wp.draws++;
+
+        // the other counted role tokens of the document, skipping this one
+        int others = lda.ndsum[m];
+        int self = n*R + j;
+        double[] sm = smooth[j];
+        int s = f;
+        double ps = target(doc, n, s);
+        for (int step = 0; step < MH_STEPS; step++) {
+            // document proposal
+            double u = rng.nextDouble() * (others + K * alpha);
+            int t;
+            if (u < others) {
+                int pos;
+                if (others == doc.length - 1) {
+                    pos = (int) u;
+                    if (pos >= self)
+                        pos++;
+                } else {
+                    // null slots are not counted in nd; draw until a counted
+                    // token other than this one comes up
+                    do
+                        pos = rng.nextInt(doc.length);
+                    while (pos == self || lda.isNull(doc, pos));
+                }
+                t = lda.r.get(m, pos);
+            } else {
+                t = Math.min((int) ((u - others) / alpha), K - 1);
+            }
+            if (t != s) {
+                double pt = target(doc, n, t);
+                double qs = docRow[s] + alpha;
+                double qt = docRow[t] + alpha;
+                if (rng.nextDouble() * ps * qt < pt * qs) {
+                    s = t;
+                    ps = pt;
+                }
+            }
+
+            // word proposal
+            u = rng.nextDouble() * (wp.total + smoothTotal[j]);
+            if (u < wp.total)
+                t = wp.frames[wp.table.sample(u / wp.total)];
+            else
+                t = smoothTable[j].sample((u - wp.total) / smoothTotal[j]);
+            if (t != s) {
+                double pt = target(doc, n, t);
+                double qs = mass(wp, s) + sm[s];
+                double qt = mass(wp, t) + sm[t];
+                if (rng.nextDouble() * ps * qt < pt * qs) {
+                    s = t;
+                    ps = pt;
+                }
+            }
+        }
+
+        // add newly estimated z_i to count variables
+        update(j, m, w, s, 1);
+        return s;
+    }
+
+    /**
+     * Unnormalised full conditional of frame k for tuple n of curDoc.
+     */
+    private double target(int[] doc, int n, int k) {
+        double p = docRow[k] + alpha;
+        for (int i = 0; i < R; i++)
+            if (doc[n*R+i] != lda.nullWord[i])
+                p *= (nr[i].get(doc[n*R+i], k) + betas[i]) / (nrsum.get(i, k) + lda.RC[i] * betas[i]);
+        return p;
+    }
+
+    private static double mass(WordProposal wp, int k) {
+        int x = Arrays.binarySearch(wp.frames, 0, wp.size, k);
+        return x >= 0 ? wp.mass[x] : 0;
+    }
+
+    private void update(int j, int m, int w, int f, int delta) {
+        nr[j].add(w, f, delta);
+        nrsum.add(j, f, delta);
+        lda.ndr[j].add(m, f, delta);
+        lda.ndrsum[j][m] += delta;
+        lda.nd.add(m, f, delta);
+        lda.ndsum[m] += delta;
+        docRow[f] += delta;
+        int count = nr[j].get(w, f);
+        if (delta > 0 && count == 1)
+            wordFrames[j][w] = append(wordFrames[j][w], wordFrameSize[j][w]++, f);
+        else if (delta < 0 && count == 0)
+            wordFrameSize[j][w] = remove(wordFrames[j][w], wordFrameSize[j][w], f);
+    }
+
+    private WordProposal buildProposal(int j, int w) {
+        WordProposal wp = proposals[j][w];
+        if (wp == null)
+            wp = proposals[j][w] = new WordProposal();
+        int size = wordFrameSize[j][w];
+        if (wp.frames.length < size) {
+            // grow with the non-zero list so that rebuilds rarely allocate
+            wp.frames = new int[wordFrames[j][w].length];
+            wp.mass = new double[wp.frames.length];
+        }
+        System.arraycopy(wordFrames[j][w], 0, wp.frames, 0, size);
+        Arrays.sort(wp.frames, 0, size);
+        wp.size = size;
+        wp.total = 0;
+        for (int x = 0; x < size; x++) {
+            int k = wp.frames[x];
+            wp.mass[x] = nr[j].get(w, k) / (nrsum.get(j, k) + lda.RC[j] * betas[j]);
+            wp.total += wp.mass[x];
+        }
+        if (size > 0)
+            wp.table.build(wp.mass, size);
+        wp.draws = 0;
+        return wp;
+    }
+
+    private void buildSmoothing(int j) {
+        smoothTotal[j] = 0;
+        for (int k = 0; k < K; k++) {
+            smooth[j][k] = betas[j] / (nrsum.get(j, k) + lda.RC[j] * betas[j]);
+            smoothTotal[j] += smooth[j][k];
+        }
+        smoothTable[j].build(smooth[j], K);
+        smoothDraws[j] = 0;
+    }
+}
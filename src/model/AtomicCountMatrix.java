@@ -0,0 +1,49 @@
+package model;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Word-major count matrix whose cells are updated with atomic adds, so that
+ * several threads can share it (Hogwild). Reads are plain volatile loads and
+ * may be slightly stale with respect to other threads.
+ * 
+ * @author Yang Zhou
+ * 
+ */
+class AtomicCountMatrix extends CountMatrix {
+    private final AtomicIntegerArray data;
+
+    /**
+     * Atomic copy of another matrix.
+     */
+    AtomicCountMatrix(CountMatrix counts) {
+        super(counts.rows, counts.cols);
+        if ((long) rows * cols > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Count matrix too large: "
+                    + rows + " x " + cols);
+        data = new AtomicIntegerArray(rows * cols);
+        for (int row = 0; row < rows; row++)
+            for (int col = 0; col < cols; col++)
+                data.set(row * cols + col, counts.get(row, col));
+    }
+
+    @Override
+    int get(int row, int col) {
+        return data.get(row * cols + col);
+    }
+
+    @Override
+    void set(int row, int col, int value) {
+        data.set(row * cols + col, value);
+    }
+
+    @Override
+    void add(int row, int col, int delta) {
+        data.getAndAdd(row * cols + col, delta);
+    }
+
+    @Override
+    long bytes() {
+        return 32 + 4L * data.length();
+    }
+}
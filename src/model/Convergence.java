@@ -0,0 +1,63 @@
+package model;
+
+/**
+ * Stopping rule of a chain. Every interval iterations the joint
+ * log-likelihood and the share of role tokens whose frame changed per sweep
+ * since the previous check are compared with those of that check; the chain
+ * is taken as stationary once, at two checks in a row, the log-likelihood
+ * gained less than tolerance of its magnitude and the changed share fell by
+ * less than tolerance. A single check would too often take a noisy step for
+ * a plateau.
+ * 
+ * @author Yang Zhou
+ * 
+ */
+class Convergence {
+    final int interval;
+    private final double tolerance;
+    private double ll = Double.NaN; // at the previous check
+    private double share = Double.NaN;
+    private int calm; // checks in a row that passed
+    private long changes, tokens; // since the previous check
+
+    Convergence(int interval, double tolerance) {
+        this.interval = interval;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Record the outcome of a sweep that resampled the given number of
+     * tokens.
+     */
+    void sweep(long changed, long sampled) {
+        changes += changed;
+        tokens += sampled;
+        System.out.println(String.format("Changed %d of %d assignments (%.1f%%)",
+                changed, sampled, 100.0 * changed / Math.max(sampled, 1)));
+    }
+
+    /**
+     * Whether iteration i is followed by a check.
+     */
+    boolean due(int i) {
+        return (i + 1) % interval == 0;
+    }
+
+    /**
+     * @return true if the chain looks stationary
+     */
+    boolean check(double logLikelihood) {
+        double changed = (double) changes / Math.max(tokens, 1);
+        if (!Double.isNaN(ll) && logLikelihood - ll < tolerance * Math.abs(logLikelihood)
+                && share - changed < tolerance)
+            calm++;
+        else
+            calm = 0;
+        System.out.println(String.format("Log-likelihood: %.1f, %.2f%% of assignments changed per sweep",
+                logLikelihood, 100 * changed));
+        ll = logLikelihood;
+        share = changed;
+        changes = tokens = 0;
+        return calm >= 2;
+    }
+}
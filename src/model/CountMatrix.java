@@ -0,0 +1,89 @@
+package model;
+
+import flag.CountLayout;
+
+/**
+ * rows x cols matrix of counts. Rows are words, documents or roles, columns
+ * are frames.
+ * 
+ * @author Yang Zhou
+ * 
+ */
+abstract class CountMatrix {
+    final int rows;
+    final int cols;
+
+    CountMatrix(int rows, int cols) {
+        this.rows = rows;
+        this.cols = cols;
+    }
+
+    /**
+     * Empty matrix stored in the given layout.
+     */
+    static CountMatrix create(int rows, int cols, CountLayout layout) {
+        switch (layout) {
+        case HYBRID:
+            return new HybridCountMatrix(rows, cols);
+        case PACKED:
+            return new PackedCountMatrix(rows, cols);
+        default:
+            return new DenseCountMatrix(rows, cols, layout);
+        }
+    }
+
+    abstract int get(int row, int col);
+
+    abstract void set(int row, int col, int value);
+
+    abstract void add(int row, int col, int delta);
+
+    /**
+     * Approximate heap footprint in bytes, counting 16 bytes per array
+     * header and 4 per reference.
+     */
+    abstract long bytes();
+
+    /**
+     * Copy one row into dst[0 .. cols).
+     */
+    void readRow(int row, int[] dst) {
+        for (int col = 0; col < cols; col++)
+            dst[col] = get(row, col);
+    }
+
+    /**
+     * Copy the non-zero columns of one row, in increasing order, into
+     * cols[] and their counts into counts[].
+     * 
+     * @return the number of non-zero columns
+     */
+    int readNonZero(int row, int[] cols, int[] counts) {
+        int n = 0;
+        for (int col = 0; col < this.cols; col++) {
+            int c = get(row, col);
+            if (c != 0) {
+                cols[n] = col;
+                counts[n++] = c;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Whether all rows of one column are stored next to each other, so that
+     * scanning a frame over all words is linear in memory.
+     */
+    boolean frameMajor() {
+        return false;
+    }
+
+    /**
+     * Overwrite this matrix with the counts of another one of the same shape.
+     */
+    void copyFrom(CountMatrix other) {
+        for (int row = 0; row < rows; row++)
+            for (int col = 0; col < cols; col++)
+                set(row, col, other.get(row, col));
+    }
+}
@@ -0,0 +1,77 @@
+package model;
+
+import flag.CountLayout;
+
+/**
+ * Count matrix backed by one contiguous int array, either word-major (a row
+ * is contiguous, what the samplers scan) or frame-major (a column is
+ * contiguous, what the phi estimates scan).
+ * 
+ * @author Yang Zhou
+ * 
+ */
+class DenseCountMatrix extends CountMatrix {
+    private final int[] data;
+    private final int rowStride;
+    private final int colStride;
+    private final boolean frameMajor;
+
+    DenseCountMatrix(int rows, int cols, CountLayout layout) {
+        super(rows, cols);
+        if ((long) rows * cols > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Count matrix too large: "
+                    + rows + " x " + cols);
+        data = new int[rows * cols];
+        frameMajor = layout == CountLayout.FRAME_MAJOR;
+        if (layout == CountLayout.FRAME_MAJOR) {
+            rowStride = 1;
+            colStride = rows;
+        } else {
+            rowStride = cols;
+            colStride = 1;
+        }
+    }
+
+    @Override
+    int get(int row, int col) {
+        return data[row * rowStride + col * colStride];
+    }
+
+    @Override
+    void set(int row, int col, int value) {
+        data[row * rowStride + col * colStride] = value;
+    }
+
+    @Override
+    void add(int row, int col, int delta) {
+        data[row * rowStride + col * colStride] += delta;
+    }
+
+    @Override
+    void readRow(int row, int[] dst) {
+        if (frameMajor)
+            super.readRow(row, dst);
+        else
+            System.arraycopy(data, row * rowStride, dst, 0, cols);
+    }
+
+    @Override
+    long bytes() {
+        return 16 + 4L * data.length;
+    }
+
+    @Override
+    boolean frameMajor() {
+        return frameMajor;
+    }
+
+    @Override
+    void copyFrom(CountMatrix other) {
+        if (other instanceof DenseCountMatrix
+                && ((DenseCountMatrix) other).frameMajor == frameMajor
+                && other.rows == rows && other.cols == cols)
+            System.arraycopy(((DenseCountMatrix) other).data, 0, data, 0, data.length);
+        else
+            super.copyFrom(other);
+    }
+}
@@ -0,0 +1,373 @@
+package model;
+
+import util.FenwickTree;
+import util.RandomSource;
+import util.Utils;
+import flag.Precision;
+
+/**
+ * The plain collapsed Gibbs kernel: evaluates the full conditional for all K
+ * frames, O(K*R) per token. The reciprocals of the frame--role denominators
+ * are cached and only the entry of the frame a token leaves or joins is
+ * recomputed; the scratch buffers are reused, so a token allocates nothing.
+ * <p>
+ * In single precision the conditional is evaluated in float, with the role
+ * denominators scaled by their prior mass RC[i] * b_i so that every role
+ * factor lies in (0, RC[i] * b_i]. A token whose total still under- or
+ * overflows the float range is redrawn in double.
+ * <p>
+ * The full conditional of every role token of a tuple contains the same
+ * cross-role product prod_i (nr[i][w_i][k] + b_i) / (nrsum[i][k] + RC[i] * b_i).
+ * {@link #sampleTuple(int, int)} computes it once per tuple and, as each role
+ * moves a token, only refreshes the two frames the token left and joined.
+ * Roles whose slot is a null left out of the model contribute no factor.
+ * <p>
+ * A run of identical tuples shares that product as well.
+ * {@link #sampleRun(int, int, int)} keeps the full conditional of the run's
+ * role tokens in a Fenwick tree, so that each further copy costs O(R log K)
+ * instead of O(K * R).
+ *
+ * @author Yang Zhou
+ *
+ */
+class DenseRoleSampler extends RoleSampler {
+    private int[][] rows = new int[0][]; // counts of the tuple's role words
+    private boolean[] present = new boolean[0]; // roles of the tuple that are not null
+    private int[] docRow = new int[0]; // document--frame counts
+    private double[][] inv = new double[0][]; // 1 / (nrsum[i][k] + RC[i] * b_i)
+    private double[] p = new double[0];
+    private double[] prod = new double[0]; // cross-role product of the tuple
+    private FenwickTree tree = new FenwickTree(0); // full conditional of a run
+    // single-precision counterparts, only sized when lda.PRECISION is SINGLE
+    private float[][] invf = new float[0][]; // RC[i] * b_i / (nrsum[i][k] + RC[i] * b_i)
+    private float[] pf = new float[0];
+    private float[] prodf = new float[0];
+    private boolean single;
+
+    // below this total the frames lost to float underflow may carry more
+    // than one ulp of it
+    private static final float UNDERFLOW_GUARD = Float.MIN_NORMAL * 0x1p24f;
+
+    DenseRoleSampler(MultiRoleTlda lda, CountMatrix[] nr, CountMatrix nrsum, RandomSource rng) {
+        super(lda, nr, nrsum, rng);
+    }
+
+    @Override
+    void init() {
+        int K = lda.K, R = lda.R;
+        if (rows.length != R || rows[0].length != K) {
+            rows = new int[R][K];
+            present = new boolean[R];
+            docRow = new int[K];
+            inv = new double[R][K];
+            p = new double[K];
+            prod = new double[K];
+            tree = new FenwickTree(K);
+        }
+        single = lda.PRECISION == Precision.SINGLE;
+        if (single && (invf.length != R || invf[0].length != K)) {
+            invf = new float[R][K];
+            pf = new float[K];
+            prodf = new float[K];
+        }
+        for (int i = 0; i < R; i++)
+            for (int k = 0; k < K; k++)
+                updateDenominator(i, k);
+    }
+
+    /**
+     * Re-read the denominators, which other threads may have changed.
+     */
+    @Override
+    void beginSweep() {
+        init();
+    }
+
+    @Override
+    int sample(int j, int m, int n) {
+        int[] doc = lda.documents[m];
+        int R = lda.R;
+
+        // remove f_i from the count variables
+        int f = lda.r.get(j, m, n);
+        move(j, m, doc[n*R+j], f, -1);
+
+        readTuple(doc, m, n);
+
+        f = single ? drawSingle() : -1;
+        if (f < 0)
+            f = drawDouble();
+
+        // add newly estimated z_i to count variables
+        move(j, m, doc[n*R+j], f, 1);
+        return f;
+    }
+
+    @Override
+    void sampleTuple(int m, int n) {
+        int[] doc = lda.documents[m];
+        int K = lda.K, R = lda.R;
+        double[] betas = lda.betas;
+
+        readTuple(doc, m, n);
+
+        // the cross-role product, one flat pass per role
+        if (single) {
+            for (int k = 0; k < K; k++)
+                prodf[k] = 1;
+            for (int i = 0; i < R; i++) {
+                if (!present[i])
+                    continue;
+                int[] row = rows[i];
+                float[] q = invf[i];
+                float b = (float) betas[i];
+                for (int k = 0; k < K; k++)
+                    prodf[k] *= (row[k] + b) * q[k];
+            }
+        } else {
+            fillProduct();
+        }
+
+        for (int j = 0; j < R; j++) {
+            if (!present[j])
+                continue;
+            // remove f_i from the count variables and the scratch rows
+            int f = lda.r.get(j, m, n);
+            move(j, m, doc[n*R+j], f, -1);
+            rows[j][f]--;
+            docRow[f]--;
+            updateProduct(f);
+
+            f = single ? drawTupleSingle() : drawTuple();
+            if (f < 0)
+                f = drawDouble();
+
+            // add newly estimated z_i to count variables
+            move(j, m, doc[n*R+j], f, 1);
+            rows[j][f]++;
+            docRow[f]++;
+            updateProduct(f);
+            lda.r.set(j, m, n, f);
+        }
+    }
+
+    @Override
+    void sampleRun(int m, int n, int count) {
+        if (count == 1) {
+            sampleTuple(m, n);
+            return;
+        }
+        int[] doc = lda.documents[m];
+        int K = lda.K, R = lda.R;
+        double alpha = lda.alpha;
+
+        // the run is drawn in double, whatever the precision
+        readTuple(doc, m, n);
+        fillProduct();
+
+        for (int j = 0; j < R; j++) {
+            if (!present[j])
+                continue;
+            int w = doc[n*R+j];
+            for (int k = 0; k < K; k++)
+                p[k] = (docRow[k] + alpha) * prod[k];
+            tree.build(p);
+            for (int c = n; c < n + count; c++) {
+                int f = lda.r.get(j, m, c);
+                moveRun(j, m, w, f, -1);
+                f = tree.search(rng.nextDouble() * tree.total());
+                moveRun(j, m, w, f, 1);
+                lda.r.set(j, m, c, f);
+            }
+        }
+    }
+
+    /**
+     * {@link #move(int, int, int, int, int)} for a token of a run, keeping
+     * the scratch rows, the product and the tree in sync.
+     */
+    private void moveRun(int j, int m, int w, int f, int delta) {
+        move(j, m, w, f, delta);
+        rows[j][f] += delta;
+        docRow[f] += delta;
+        prod[f] = product(f);
+        tree.set(f, (docRow[f] + lda.alpha) * prod[f]);
+    }
+
+    /**
+     * Read the counts of the present role words of tuple n and of document m
+     * into the scratch rows.
+     */
+    private void readTuple(int[] doc, int m, int n) {
+        int R = lda.R;
+        for (int i = 0; i < R; i++) {
+            present[i] = doc[n*R+i] != lda.nullWord[i];
+            if (present[i])
+                nr[i].readRow(doc[n*R+i], rows[i]);
+        }
+        lda.nd.readRow(m, docRow);
+    }
+
+    /**
+     * Add delta tokens of role j for word w in document m to frame f.
+     */
+    private void move(int j, int m, int w, int f, int delta) {
+        nr[j].add(w, f, delta); // mapping position
+        lda.ndr[j].add(m, f, delta);
+        nrsum.add(j, f, delta);
+        lda.ndrsum[j][m] += delta;
+        lda.nd.add(m, f, delta);
+        lda.ndsum[m] += delta;
+        updateDenominator(j, f);
+    }
+
+    /**
+     * Compute the cross-role product in double, one flat pass per role.
+     */
+    private void fillProduct() {
+        int K = lda.K;
+        double[] betas = lda.betas;
+        for (int k = 0; k < K; k++)
+            prod[k] = 1;
+        for (int i = 0; i < lda.R; i++) {
+            if (!present[i])
+                continue;
+            int[] row = rows[i];
+            double[] q = inv[i];
+            double b = betas[i];
+            for (int k = 0; k < K; k++)
+                prod[k] *= (row[k] + b) * q[k];
+        }
+    }
+
+    private double product(int k) {
+        double x = 1;
+        for (int i = 0; i < lda.R; i++)
+            if (present[i])
+                x *= (rows[i][k] + lda.betas[i]) * inv[i][k];
+        return x;
+    }
+
+    /**
+     * Recompute the cross-role product of frame k from the scratch rows.
+     */
+    private void updateProduct(int k) {
+        double[] betas = lda.betas;
+        if (single) {
+            float x = 1;
+            for (int i = 0; i < lda.R; i++)
+                if (present[i])
+                    x *= (rows[i][k] + (float) betas[i]) * invf[i][k];
+            prodf[k] = x;
+        } else {
+            prod[k] = product(k);
+        }
+    }
+
+    /**
+     * Draw from the document counts and the cross-role product of the tuple.
+     */
+    private int drawTuple() {
+        int K = lda.K;
+        double alpha = lda.alpha;
+        double total = 0;
+        for (int k = 0; k < K; k++) {
+            total += (docRow[k] + alpha) * prod[k];
+            p[k] = total;
+        }
+        return Utils.search(p, K, rng.nextDouble() * total);
+    }
+
+    /**
+     * Float version of {@link #drawTuple()}.
+     * 
+     * @return the frame, or -1 if the total left the float range
+     */
+    private int drawTupleSingle() {
+        int K = lda.K;
+        float alpha = (float) lda.alpha;
+        float total = 0;
+        for (int k = 0; k < K; k++) {
+            total += (docRow[k] + alpha) * prodf[k];
+            pf[k] = total;
+        }
+        return searchSingle(total);
+    }
+
+    /**
+     * Draw from the full conditional of the rows read for the current token.
+     * The document denominator is the same for all frames and left out. Each
+     * pass is a flat loop over the frames, which the JIT vectorises.
+     */
+    private int drawDouble() {
+        int K = lda.K, R = lda.R;
+        double alpha = lda.alpha;
+        double[] betas = lda.betas;
+        for (int k = 0; k < K; k++)
+            p[k] = docRow[k] + alpha;
+        for (int i = 0; i < R; i++) {
+            if (!present[i])
+                continue;
+            int[] row = rows[i];
+            double[] q = inv[i];
+            double b = betas[i];
+            for (int k = 0; k < K; k++)
+                p[k] *= (row[k] + b) * q[k];
+        }
+        double total = 0;
+        for (int k = 0; k < K; k++) {
+            total += p[k];
+            p[k] = total;
+        }
+        // scaled sample because of unnormalised p[]
+        return Utils.search(p, K, rng.nextDouble() * total);
+    }
+
+    /**
+     * Float version of {@link #drawDouble()}.
+     * 
+     * @return the frame, or -1 if the total left the float range
+     */
+    private int drawSingle() {
+        int K = lda.K, R = lda.R;
+        float alpha = (float) lda.alpha;
+        double[] betas = lda.betas;
+        for (int k = 0; k < K; k++)
+            pf[k] = docRow[k] + alpha;
+        for (int i = 0; i < R; i++) {
+            if (!present[i])
+                continue;
+            int[] row = rows[i];
+            float[] q = invf[i];
+            float b = (float) betas[i];
+            for (int k = 0; k < K; k++)
+                pf[k] *= (row[k] + b) * q[k];
+        }
+        float total = 0;
+        for (int k = 0; k < K; k++) {
+            total += pf[k];
+            pf[k] = total;
+        }
+        return searchSingle(total);
+    }
+
+    /**
+     * Draw from the cumulative float masses in pf[].
+     * 
+     * @return the frame, or -1 if the total left the float range
+     */
+    private int searchSingle(float total) {
+        if (!(total >= UNDERFLOW_GUARD) || total == Float.POSITIVE_INFINITY)
+            return -1;
+        // rounding to float must not reach the end of the last frame
+        float u = Math.min((float) (rng.nextDouble() * total), Math.nextAfter(total, 0));
+        return Utils.search(pf, lda.K, u);
+    }
+
+    private void updateDenominator(int i, int k) {
+        double prior = lda.RC[i] * lda.betas[i];
+        inv[i][k] = 1.0 / (nrsum.get(i, k) + prior);
+        if (single)
+            invf[i][k] = (float) (prior * inv[i][k]);
+    }
+}
@@ -0,0 +1,75 @@
+package model;
+
+/**
+ * Frame assignments of all role tokens of a corpus in one array. The cells
+ * follow the document arrays: document m starts at its own offset and the
+ * roles of a tuple are next to each other, so position n * R + j of
+ * documents[m] is assigned the frame in the same position here. Cells are
+ * 16 bits wide as long as every frame fits and 32 bits otherwise.
+ * <p>
+ * Writes to different documents may come from different threads; a 16-bit
+ * cell is written on its own, without touching its neighbours.
+ *
+ * @author Yang Zhou
+ *
+ */
+class FrameAssignment {
+    final int R; // tokens per tuple
+
+    private final int[] start; // first cell of each document, plus the total
+    private final char[] narrow; // null if K exceeds 16 bits
+    private final int[] wide; // null otherwise
+
+    FrameAssignment(int[][] documents, int R, int K) {
+        this.R = R;
+        int M = documents.length;
+        start = new int[M + 1];
+        for (int m = 0; m < M; m++)
+            start[m + 1] = start[m] + documents[m].length;
+        if (K - 1 <= Character.MAX_VALUE) {
+            narrow = new char[start[M]];
+            wide = null;
+        } else {
+            narrow = null;
+            wide = new int[start[M]];
+        }
+    }
+
+    /**
+     * Frame of role j in tuple n of document m.
+     */
+    int get(int j, int m, int n) {
+        return get(m, n * R + j);
+    }
+
+    /**
+     * Frame of the token at position pos of documents[m].
+     */
+    int get(int m, int pos) {
+        int x = start[m] + pos;
+        return narrow != null ? narrow[x] : wide[x];
+    }
+
+    void set(int j, int m, int n, int f) {
+        int x = start[m] + n * R + j;
+        if (narrow != null)
+            narrow[x] = (char) f;
+        else
+            wide[x] = f;
+    }
+
+    /**
+     * Number of tuples in document m.
+     */
+    int tuples(int m) {
+        return (start[m + 1] - start[m]) / R;
+    }
+
+    /**
+     * Approximate heap footprint in bytes.
+     */
+    long bytes() {
+        long cells = start[start.length - 1];
+        return 16 + 4L * start.length + 16 + (narrow != null ? 2 * cells : 4 * cells);
+    }
+}
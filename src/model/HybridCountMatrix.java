@@ -0,0 +1,192 @@
+package model;
+
+import java.util.Arrays;
+
+/**
+ * Word-major count matrix for Zipfian rows and short documents: a row with
+ * few non-zero frames is kept as sorted (frame, count) arrays, a row with many
+ * as a plain int[cols].
+ * A sparse row turns dense once more than cols / DENSE_FRACTION frames are
+ * non-zero and back to sparse once it drops below half of that, so that a
+ * row hovering at the threshold does not flip on every token.
+ *
+ * @author Yang Zhou
+ *
+ */
+class HybridCountMatrix extends CountMatrix {
+    private static final int DENSE_FRACTION = 4;
+    private static final int[] EMPTY = new int[0];
+
+    private final int[][] dense; // null for sparse rows
+    private final int[][] frames; // sorted non-zero frames of sparse rows
+    private final int[][] counts;
+    private final int[] size; // non-zero frames of each row
+    private final int promote;
+    private final int demote;
+
+    HybridCountMatrix(int rows, int cols) {
+        super(rows, cols);
+        dense = new int[rows][];
+        frames = new int[rows][];
+        counts = new int[rows][];
+        size = new int[rows];
+        Arrays.fill(frames, EMPTY);
+        Arrays.fill(counts, EMPTY);
+        promote = Math.max(cols / DENSE_FRACTION, 1);
+        demote = promote / 2;
+    }
+
+    @Override
+    int get(int row, int col) {
+        int[] d = dense[row];
+        if (d != null)
+            return d[col];
+        int x = Arrays.binarySearch(frames[row], 0, size[row], col);
+        return x >= 0 ? counts[row][x] : 0;
+    }
+
+    @Override
+    void set(int row, int col, int value) {
+        add(row, col, value - get(row, col));
+    }
+
+    @Override
+    void add(int row, int col, int delta) {
+        if (delta == 0)
+            return;
+        int[] d = dense[row];
+        if (d != null) {
+            int old = d[col];
+            d[col] = old + delta;
+            if (old == 0)
+                size[row]++;
+            else if (old + delta == 0 && --size[row] < demote)
+                toSparse(row);
+            return;
+        }
+
+        int n = size[row];
+        int[] f = frames[row], c = counts[row];
+        int x = Arrays.binarySearch(f, 0, n, col);
+        if (x >= 0) {
+            if ((c[x] += delta) == 0) {
+                System.arraycopy(f, x + 1, f, x, n - x - 1);
+                System.arraycopy(c, x + 1, c, x, n - x - 1);
+                size[row]--;
+            }
+            return;
+        }
+        if (n + 1 > promote) {
+            toDense(row);
+            dense[row][col] += delta;
+            size[row]++;
+            return;
+        }
+        x = -x - 1;
+        if (n == f.length) {
+            int capacity = Math.min(Math.max(2 * n, 2), promote);
+            f = frames[row] = Arrays.copyOf(f, capacity);
+            c = counts[row] = Arrays.copyOf(c, capacity);
+        }
+        System.arraycopy(f, x, f, x + 1, n - x);
+        System.arraycopy(c, x, c, x + 1, n - x);
+        f[x] = col;
+        c[x] = delta;
+        size[row]++;
+    }
+
+    @Override
+    void readRow(int row, int[] dst) {
+        if (dense[row] != null) {
+            System.arraycopy(dense[row], 0, dst, 0, cols);
+            return;
+        }
+        Arrays.fill(dst, 0, cols, 0);
+        for (int x = 0; x < size[row]; x++)
+            dst[frames[row][x]] = counts[row][x];
+    }
+
+    @Override
+    int readNonZero(int row, int[] cols, int[] counts) {
+        int[] d = dense[row];
+        if (d != null) {
+            int n = 0;
+            for (int col = 0; col < this.cols; col++)
+                if (d[col] != 0) {
+                    cols[n] = col;
+                    counts[n++] = d[col];
+                }
+            return n;
+        }
+        int n = size[row];
+        System.arraycopy(frames[row], 0, cols, 0, n);
+        System.arraycopy(this.counts[row], 0, counts, 0, n);
+        return n;
+    }
+
+    @Override
+    long bytes() {
+        long total = 3 * (16 + 4L * rows) + 16 + 4L * rows;
+        for (int row = 0; row < rows; row++) {
+            if (dense[row] != null)
+                total += 16 + 4L * cols;
+            if (frames[row] != EMPTY)
+                total += 2 * (16 + 4L * frames[row].length);
+        }
+        return total;
+    }
+
+    @Override
+    void copyFrom(CountMatrix other) {
+        if (!(other instanceof HybridCountMatrix) || other.rows != rows
+                || other.cols != cols) {
+            super.copyFrom(other);
+            return;
+        }
+        HybridCountMatrix h = (HybridCountMatrix) other;
+        for (int row = 0; row < rows; row++) {
+            int n = h.size[row];
+            if (h.dense[row] != null) {
+                if (dense[row] == null)
+                    dense[row] = new int[cols];
+                System.arraycopy(h.dense[row], 0, dense[row], 0, cols);
+                frames[row] = EMPTY;
+                counts[row] = EMPTY;
+            } else {
+                dense[row] = null;
+                if (frames[row].length < n) {
+                    frames[row] = new int[h.frames[row].length];
+                    counts[row] = new int[h.frames[row].length];
+                }
+                System.arraycopy(h.frames[row], 0, frames[row], 0, n);
+                System.arraycopy(h.counts[row], 0, counts[row], 0, n);
+            }
+            size[row] = n;
+        }
+    }
+
+    private void toDense(int row) {
+        int[] d = new int[cols];
+        for (int x = 0; x < size[row]; x++)
+            d[frames[row][x]] = counts[row][x];
+        dense[row] = d;
+        frames[row] = EMPTY;
+        counts[row] = EMPTY;
+    }
+
+    private void toSparse(int row) {
+        int[] d = dense[row];
+        int n = size[row];
+        int[] f = new int[Math.min(2 * n, promote)];
+        int[] c = new int[f.length];
+        int x = 0;
+        for (int col = 0; col < cols; col++)
+            if (d[col] != 0) {
+                f[x] = col;
+                c[x++] = d[col];
+            }
+        frames[row] = f;
+        counts[row] = c;
+        dense[row] = null;
+    }
+}
@@ -0,0 +1,110 @@
+package model;
+
+import java.util.Arrays;
+
+import util.RandomSource;
+import flag.MinibatchSchedule;
+
+/**
+ * The documents swept in one iteration of a minibatch chain, kept in
+ * increasing order. RANDOM draws every batch independently, CYCLIC cuts a
+ * shuffled order of the corpus into consecutive batches, so that every
+ * document is visited once per about 1 / fraction iterations.
+ * 
+ * @author Yang Zhou
+ * 
+ */
+class Minibatch {
+    private final int M; // number of documents
+    private final int size; // documents per batch
+    private final MinibatchSchedule schedule;
+    private final RandomSource rng;
+
+    private final int[] order; // CYCLIC: shuffled documents, consumed from next
+    private int next;
+    private final int[] batch; // documents of the current batch, sorted
+
+    Minibatch(int M, double fraction, MinibatchSchedule schedule, RandomSource rng) {
+        this.M = M;
+        this.size = (int) Math.max(1, Math.min(M, Math.round(fraction * M)));
+        this.schedule = schedule;
+        this.rng = rng;
+        this.batch = new int[size];
+        if (schedule == MinibatchSchedule.CYCLIC) {
+            order = new int[M];
+            for (int m = 0; m < M; m++)
+                order[m] = m;
+            next = M;
+        } else {
+            order = null;
+        }
+    }
+
+    /**
+     * Draw the documents of the next iteration.
+     */
+    void draw() {
+        if (schedule == MinibatchSchedule.CYCLIC) {
+            int x = 0;
+            while (x < size) {
+                if (next == M) {
+                    shuffle();
+                    next = 0;
+                }
+                int take = Math.min(size - x, M - next);
+                System.arraycopy(order, next, batch, x, take);
+                next += take;
+                x += take;
+            }
+            // a batch straddling two epochs may hold a document twice,
+            // which then is simply swept twice
+            Arrays.sort(batch);
+            return;
+        }
+        // selection sampling (Knuth, Algorithm S), already in order
+        int chosen = 0;
+        for (int m = 0; m < M && chosen < size; m++)
+            if ((M - m) * rng.nextDouble() < size - chosen)
+                batch[chosen++] = m;
+    }
+
+    private void shuffle() {
+        for (int m = M - 1; m > 0; m--) {
+            int x = rng.nextInt(m + 1);
+            int t = order[m];
+            order[m] = order[x];
+            order[x] = t;
+        }
+    }
+
+    /**
+     * @return the documents of the current batch in increasing order
+     */
+    int[] documents() {
+        return batch;
+    }
+
+    /**
+     * Position of the first document of the current batch not below m.
+     */
+    int lowerBound(int m) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (batch[mid] < m)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    boolean contains(int m) {
+        int x = lowerBound(m);
+        return x < size && batch[x] == m;
+    }
+
+    int size() {
+        return size;
+    }
+}
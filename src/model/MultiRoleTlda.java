@@ -18,43 +18,106 @@ import java.util.TreeMap;
 
 import processor.MultiRoleIndexr;
 import structure.Document;
+import util.LogGammaTable;
+import util.RandomSource;
+import util.Xoroshiro128;
+import flag.CountLayout;
+import flag.MinibatchSchedule;
+import flag.ParallelMode;
+import flag.Precision;
+import flag.SamplerType;
 
 public class MultiRoleTlda {
     private MultiRoleIndexr indexer;
     
     
-    private int[][] documents; // document data (term lists)
-    private int V; // vocabulary size
-    private int[] RC; // semantic role count
+    // chain state is package-private so that the RoleSampler engines can use it
+    int[][] documents; // document data (per-role word ids)
+    int[] RC; // vocabulary size of each semantic role
     private String[] roleNames;
-    private int K; // number of frames
-    private int R; // number of roles
+    int K; // number of frames
+    int R; // number of roles
 
-    private double alpha; // Dirichlet parameter (document--frame associations)
-    private double[] betas; // frame -- role realizations
+    double alpha; // Dirichlet parameter (document--frame associations)
+    double[] betas; // frame -- role realizations
 
-    private int[][][] r; // frame assignments for each role.
-    private int[][][] nr; // number of instances of role i assigned to frame j
-    private int[][][] ndr; // number of roles in document i assigned to frame j
-    private int[][] nrsum; // total number of roles assigned to frame j
-    private int[][] ndrsum; // total number of roles in document i
+    FrameAssignment r; // frame assignments of the role tokens, tuple by tuple
+    CountMatrix[] nr; // number of instances of role i assigned to frame j
+    CountMatrix[] ndr; // number of roles in document i assigned to frame j
+    CountMatrix nrsum; // total number of roles i assigned to frame j
+    int[][] ndrsum; // total number of roles in document i
+    CountMatrix nd; // number of role tokens of all roles in document i assigned to frame j
+    int[] ndsum; // total number of role tokens of all roles in document i
+    int[][] runs; // lengths of the runs of identical tuples of each document, or null
 
-    private double[][] thetasum; // cumulative statistics of theta, delta, gamma
-    private double[][][] phisum; // cumulative statistics of phi
+    private CountMatrix thetasum; // document--frame counts summed over the statistics
+    private SumMatrix[] phisum; // cumulative statistics of phi
     private int numstats; // size of statistics
     private double[][] theta;
+    private int[] thetaCounts = new int[0]; // scratch of getTheta(int, int[], double[])
     private double[][][] phi;
 
     private int THIN_INTERVAL = 20; // sampling lag (?)
     private int BURN_IN = 100; // burn-in period
     private int ITERATIONS = 1000; // max iterations
     private int SAMPLE_LAG; // sample lag (if -1 only one sample taken)
+    private SamplerType SAMPLER = SamplerType.DENSE; // full-conditional engine
+    private ParallelMode PARALLEL = ParallelMode.SERIAL; // sweep scheduling
+    private int THREADS = 1; // number of sampling threads
+    private CountLayout LAYOUT = CountLayout.WORD_MAJOR; // storage of the count matrices
+    Precision PRECISION = Precision.DOUBLE; // of the dense kernel and the statistics
+    private boolean SKIP_NULL = false; // leave "null" role slots out of the model
+    int[] nullWord; // id of "null" in each role, -1 where it is a plain word
+    private int SKIP_STABLE = 0; // unchanged sweeps before a tuple may be skipped, 0 never skips
+    private double SKIP_FLOOR = 0.1; // lowest resampling probability of a stable tuple
+    private double MINIBATCH = 1; // share of the documents swept per iteration
+    private MinibatchSchedule BATCH_SCHEDULE = MinibatchSchedule.RANDOM;
+    private WarmStart warmStart; // initial frames, null for uniformly random ones
+    private int WARM_BURN_IN; // burn-in replacing BURN_IN after a warm start
+    private int CHECK_INTERVAL = 0; // iterations between convergence checks, 0 for none
+    private double TOLERANCE = 1e-3; // of the stopping rule
+    private RandomSource rng = new Xoroshiro128(System.nanoTime()); // split per thread
+
+    private RoleSampler sampler;
+    private WorkerPool pool;
+    private RoleSampler[] workerSamplers; // one engine per worker thread
+    private int[][][][] blockTokens; // [role][doc block][word block] packed (m, n) pairs
+    private CountMatrix[][] localNr;
+    private CountMatrix[] localNrsum;
+
+    // state of the skip-stable schedule, null while it is off
+    private byte[][] stable; // sweeps each tuple (run) has kept its frames, saturating
+    private int[][] changed; // frames of each document that gained or lost tokens last sweep
+    private int[] changedSize;
+    private int[][] frameScratch; // [worker] frames of a tuple (run) before sampling
+    private long[] skipped; // [worker] role tokens skipped in the current sweep
+    private long[] reassigned; // [worker] role tokens whose frame changed in the current sweep
+    private Convergence convergence; // null while the chain is not monitored
+    private Minibatch minibatch; // documents of the current iteration, null for all
+
+    // log Gamma(c + prior) - log Gamma(prior) of the log-likelihood terms
+    private LogGammaTable[] lgRole, lgRoleSum;
+    private LogGammaTable lgDoc, lgDocSum;
 
     public MultiRoleTlda(List<Document> docs, int roleNum, String[] roleNames) throws IOException {
+        this(docs, roleNum, roleNames, false);
+    }
+
+    /**
+     * @param collapse
+     *            if true, the repeats of a tuple within a document are kept
+     *            next to each other and each run of them is resampled with a
+     *            single evaluation of the full conditional; the chain still
+     *            gives every copy its own frames. Only the DENSE and SPARSE
+     *            samplers share work over a run, so gibbs rejects ALIAS and
+     *            a BLOCKED sweep on a collapsed corpus
+     */
+    public MultiRoleTlda(List<Document> docs, int roleNum, String[] roleNames,
+            boolean collapse) throws IOException {
         this.R = roleNum;
         this.indexer = new MultiRoleIndexr();
-        this.documents = indexer.doIndex(docs, roleNum);
-        this.V = indexer.getVocabularySize();
+        this.documents = indexer.doIndex(docs, roleNum, collapse);
+        this.runs = indexer.getTupleRuns();
         this.RC = new int[roleNum];
         this.roleNames = roleNames;
         for (int i = 0; i < R; i++)
@@ -72,35 +135,51 @@ public class MultiRoleTlda {
      */
     public void initialState(int K) {
         int M = documents.length;
-        phi = new double[R][K][V];
-        theta = new double[M][K];
+        // estimates are only allocated when asked for
+        phi = null;
+        theta = null;
         // initialise count variables.
-        nr = new int[R][V][K];
-        ndr = new int[R][M][K];
-        nrsum = new int[R][K];
+        CountLayout docLayout = documentLayout();
+        nr = new CountMatrix[R];
+        ndr = new CountMatrix[R];
+        for (int j = 0; j < R; j++) {
+            nr[j] = CountMatrix.create(RC[j], K, LAYOUT);
+            ndr[j] = CountMatrix.create(M, K, docLayout);
+        }
+        nrsum = new DenseCountMatrix(R, K, CountLayout.WORD_MAJOR);
         ndrsum = new int[R][M];
+        nd = CountMatrix.create(M, K, docLayout);
+        ndsum = new int[M];
+
+        nullWord = new int[R];
+        for (int j = 0; j < R; j++)
+            nullWord[j] = SKIP_NULL ? indexer.getNullIndex(j) : -1;
 
-        r = new int[R][M][];
+        r = new FrameAssignment(documents, R, K);
+        if (warmStart != null)
+            warmStart.prepare(this, K, indexer);
         for (int m = 0; m < M; m++) {
-            int N = documents[m].length / 3;
-            
-            for (int j = 0; j < R; j++) {
-                r[j][m] = new int[N];
-                // total number of words in document i
-                ndrsum[j][m] = N;
-            }
+            int N = r.tuples(m);
             
             for (int n = 0; n < N; n++) {
-                int f = (int) (Math.random() * K);
+                int f = warmStart != null ? warmStart.frame(documents[m], n, rng) : rng.nextInt(K);
                 for (int j = 0; j < R; j++) {
                     // assign frame to each role
-                    r[j][m][n] = f;
+                    r.set(j, m, n, f);
+                    // null slots keep a frame but are never counted
+                    if (documents[m][n*R+j] == nullWord[j])
+                        continue;
                     // number of instances of each role assigned to frame
-                    nr[j][documents[m][n*R+j]][f]++;
+                    nr[j].add(documents[m][n*R+j], f, 1);
                     // number of each role in document m assigned to frame f
-                    ndr[j][m][f]++;
+                    ndr[j].add(m, f, 1);
                     // total number of each role assigned to frame
-                    nrsum[j][f]++;
+                    nrsum.add(j, f, 1);
+                    // total number of words in document i
+                    ndrsum[j][m]++;
+                    // number of role tokens in document m assigned to frame f
+                    nd.add(m, f, 1);
+                    ndsum[m]++;
                 }
             }
         }
@@ -119,120 +198,601 @@ public class MultiRoleTlda {
      * @param beta
      *            symmetric prior parameter on frame--term associations
      */
-    private void gibbs(int K, double alpha, double[] betas) {
+    public void gibbs(int K, double alpha, double[] betas) {
+        checkParallel();
+        checkCollapse();
         this.K = K;
         this.alpha = alpha;
         this.betas = new double[betas.length];
         System.arraycopy(betas, 0, this.betas, 0, betas.length);
+        lgRole = null;
 
         // init sampler statistics
         if (SAMPLE_LAG > 0) {
-            thetasum = new double[documents.length][K];
-            phisum = new double[R][K][V];
+            thetasum = CountMatrix.create(documents.length, K, documentLayout());
+            phisum = new SumMatrix[R];
+            for (int j = 0; j < R; j++)
+                phisum[j] = new SumMatrix(K, RC[j], PRECISION);
             numstats = 0;
         }
 
+        // a warm start shortens the burn-in and the chain by the same amount
+        int burnIn = BURN_IN, iterations = ITERATIONS;
+        if (warmStart != null && WARM_BURN_IN < BURN_IN) {
+            iterations -= BURN_IN - WARM_BURN_IN;
+            burnIn = WARM_BURN_IN;
+        }
+
         // initial state of the Markov chain:
+        long initTime = System.nanoTime();
         initialState(K);
+        initTime = System.nanoTime() - initTime;
+        if (PARALLEL == ParallelMode.AD_LDA && THREADS > 1) {
+            pool = new WorkerPool(THREADS, documents);
+            localNr = new CountMatrix[THREADS][R];
+            localNrsum = new CountMatrix[THREADS];
+            workerSamplers = new RoleSampler[THREADS];
+            for (int t = 0; t < THREADS; t++) {
+                for (int j = 0; j < R; j++) {
+                    localNr[t][j] = CountMatrix.create(RC[j], K, LAYOUT);
+                    localNr[t][j].copyFrom(nr[j]);
+                }
+                localNrsum[t] = new DenseCountMatrix(R, K, CountLayout.WORD_MAJOR);
+                localNrsum[t].copyFrom(nrsum);
+                workerSamplers[t] = createSampler(localNr[t], localNrsum[t], rng.split());
+                workerSamplers[t].merged = true;
+                workerSamplers[t].init();
+            }
+        } else if (PARALLEL == ParallelMode.BLOCKED && THREADS > 1) {
+            pool = new WorkerPool(THREADS, documents);
+            localNrsum = new CountMatrix[THREADS];
+            workerSamplers = new RoleSampler[THREADS];
+            for (int t = 0; t < THREADS; t++) {
+                localNrsum[t] = new DenseCountMatrix(R, K, CountLayout.WORD_MAJOR);
+                workerSamplers[t] = new DenseRoleSampler(this, nr, localNrsum[t], rng.split());
+            }
+            initBlocks();
+        } else if (PARALLEL == ParallelMode.HOGWILD && THREADS > 1) {
+            pool = new WorkerPool(THREADS, documents);
+            // a single shared copy of the word side, updated with atomic adds
+            for (int j = 0; j < R; j++)
+                nr[j] = new AtomicCountMatrix(nr[j]);
+            nrsum = new AtomicCountMatrix(nrsum);
+            workerSamplers = new RoleSampler[THREADS];
+            for (int t = 0; t < THREADS; t++)
+                workerSamplers[t] = new DenseRoleSampler(this, nr, nrsum, rng.split());
+        } else {
+            sampler = createSampler(nr, nrsum, rng.split());
+            sampler.init();
+        }
+        convergence = CHECK_INTERVAL > 0 ? new Convergence(CHECK_INTERVAL, TOLERANCE) : null;
+        initSchedule(pool != null ? pool.threads : 1);
+        minibatch = MINIBATCH < 1 ? new Minibatch(documents.length, MINIBATCH,
+                BATCH_SCHEDULE, rng.split()) : null;
 
-        System.out.println("Sampling " + ITERATIONS
-                + " iterations with burn-in of " + BURN_IN + " (B/S="
+        System.out.println("Sampling " + iterations
+                + " iterations with burn-in of " + burnIn + " (B/S="
                 + THIN_INTERVAL + ").");
+        if (warmStart != null)
+            System.out.println(String.format("Warm start from %s in %.2f s.",
+                    warmStart.source, initTime / 1e9));
+        if (runs != null) {
+            long tuples = 0, distinct = 0;
+            for (int m = 0; m < documents.length; m++) {
+                tuples += r.tuples(m);
+                distinct += runs[m].length;
+            }
+            System.out.println("Collapsing " + tuples + " tuples into "
+                    + distinct + " runs of identical tuples.");
+        }
+        if (SKIP_NULL) {
+            long tokens = 0, counted = 0;
+            for (int m = 0; m < documents.length; m++) {
+                tokens += documents[m].length;
+                counted += ndsum[m];
+            }
+            System.out.println("Leaving out " + (tokens - counted) + " of "
+                    + tokens + " role tokens as null.");
+        }
+        if (minibatch != null)
+            System.out.println("Sweeping " + minibatch.size() + " of "
+                    + documents.length + " documents per iteration ("
+                    + BATCH_SCHEDULE + ").");
 
-        for (int i = 0; i < ITERATIONS; i++) {
+        int planned = iterations, done = 0;
+        long sampleTime = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
             System.out.println("Iteration: " + i);
+            if (minibatch != null)
+                minibatch.draw();
+            if (skipped != null)
+                Arrays.fill(skipped, 0);
+            if (reassigned != null)
+                Arrays.fill(reassigned, 0);
+            if (pool != null) {
+                long start = System.nanoTime();
+                long busy;
+                if (PARALLEL == ParallelMode.HOGWILD)
+                    busy = hogwildSweep();
+                else if (blockTokens != null)
+                    busy = blockedSweep();
+                else
+                    busy = adLdaSweep();
+                System.out.println(String.format("Speedup: %.2f on %d threads",
+                        (double) busy / (System.nanoTime() - start), THREADS));
+            } else {
+                sampler.beginSweep();
 
-            // sample frame for subjects
-            for (int j = 0; j < r.length; j++)
-                for (int m = 0; m < r[j].length; m++)
-                    for (int n = 0; n < r[j][m].length; n++)
-                        r[j][m][n] = sampleRoleFullConditional(j, m, n);
+                // sample the frames of all roles of a tuple together, in a
+                // single pass over the documents
+                sampleDocuments(sampler, 0, 0, documents.length);
+            }
+            done++;
+
+            long tokens = 0, skip = 0;
+            if (skipped != null || reassigned != null) {
+                if (minibatch != null)
+                    for (int m : minibatch.documents())
+                        tokens += ndsum[m];
+                else
+                    for (int m = 0; m < documents.length; m++)
+                        tokens += ndsum[m];
+            }
+            if (skipped != null) {
+                for (long x : skipped)
+                    skip += x;
+                System.out.println(String.format("Skipped %d of %d role tokens (%.1f%%)",
+                        skip, tokens, 100.0 * skip / Math.max(tokens, 1)));
+            }
 
             // get statistics after burn-in
-            if ((i > BURN_IN) && (SAMPLE_LAG > 0) && (i % SAMPLE_LAG == 0)) {
+            if ((i > burnIn) && (SAMPLE_LAG > 0) && (i % SAMPLE_LAG == 0)) {
                 updateParams();
             }
+
+            if (convergence != null) {
+                long sum = 0;
+                for (long x : reassigned)
+                    sum += x;
+                convergence.sweep(sum, tokens - skip);
+                if (convergence.due(i) && convergence.check(logLikelihood())) {
+                    // without statistics there is nothing left to sample
+                    if (SAMPLE_LAG <= 0) {
+                        System.out.println("Stationary after " + done + " iterations, stopping.");
+                        break;
+                    }
+                    if (i < burnIn) {
+                        System.out.println("Stationary after " + done + " iterations, ending burn-in.");
+                        iterations -= burnIn - i;
+                        burnIn = i;
+                    }
+                }
+            }
+        }
+        sampleTime = System.nanoTime() - sampleTime;
+        if (done < planned)
+            System.out.println("Stopped after " + done + " of " + planned + " iterations.");
+        if (warmStart != null && WARM_BURN_IN < BURN_IN && done > 0) {
+            double saved = (double) (BURN_IN - WARM_BURN_IN) * sampleTime / done;
+            System.out.println(String.format(
+                    "Burn-in of %d instead of %d iterations saved about %.1f s (%.1f s net of the warm start).",
+                    WARM_BURN_IN, BURN_IN, saved / 1e9, (saved - initTime) / 1e9));
+        }
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
         }
+        blockTokens = null;
+        stable = null;
+        changed = null;
+        frameScratch = null;
+        skipped = null;
+        reassigned = null;
+        convergence = null;
+        minibatch = null;
     }
-    
-    // j  role type
-    // m document index
-    // n word index
-    private int sampleRoleFullConditional(int j, int m, int n) {
-        // remove f_i from the count variables
-        int f = r[j][m][n];
-        nr[j][documents[m][n*R+j]][f]--; // mapping position
-        ndr[j][m][f]--;
-        nrsum[j][f]--;
-        ndrsum[j][m]--;
-
-        // do multinomial sampling via cumulative method:
-        double[] p = new double[K];
-        for (int k = 0; k < K; k++) {
-            double framerole = 1;
-            for (int i = 0; i < R; i++) {
-                framerole *= (nr[i][documents[m][n*R+i]][k] + betas[i]) / (nrsum[i][k] + RC[i]*betas[i]);
+
+    /**
+     * Allocate the state of the skip-stable schedule if it is on and the
+     * sweeps go document by document, and the change counters if the chain
+     * is monitored.
+     */
+    private void initSchedule(int workers) {
+        if (convergence != null)
+            reassigned = new long[workers];
+        boolean skip = SKIP_STABLE > 0;
+        if (!(skip || convergence != null) || blockTokens != null)
+            return;
+        int M = documents.length;
+        int length = 0;
+        for (int m = 0; m < M; m++)
+            length = Math.max(length, documents[m].length);
+        frameScratch = new int[workers][length];
+        if (!skip)
+            return;
+        stable = new byte[M][];
+        changed = new int[M][];
+        changedSize = new int[M];
+        for (int m = 0; m < M; m++) {
+            stable[m] = new byte[runs != null ? runs[m].length : r.tuples(m)];
+            changed[m] = new int[2];
+        }
+        skipped = new long[workers];
+    }
+
+    /**
+     * Resample the documents in [from, to) of the current iteration with
+     * engine s.
+     * 
+     * @param t
+     *            worker running s
+     */
+    private void sampleDocuments(RoleSampler s, int t, int from, int to) {
+        if (minibatch == null) {
+            for (int m = from; m < to; m++)
+                sampleDocument(s, t, m);
+            return;
+        }
+        int[] batch = minibatch.documents();
+        for (int x = minibatch.lowerBound(from); x < minibatch.lowerBound(to); x++)
+            sampleDocument(s, t, batch[x]);
+    }
+
+    /**
+     * Resample the tuples of document m with engine s, a run of identical
+     * tuples at a time if the corpus was collapsed.
+     * <p>
+     * Under the skip-stable schedule a tuple whose frames have not changed
+     * for SKIP_STABLE sweeps is only resampled with a probability that falls
+     * with the number of such sweeps, unless one of its frames gained or lost
+     * tokens of the document in the previous sweep. A monitored chain counts
+     * the role tokens whose frame changes.
+     * 
+     * @param t
+     *            worker running s
+     */
+    private void sampleDocument(RoleSampler s, int t, int m) {
+        if (frameScratch == null) {
+            if (runs == null) {
+                for (int n = 0; n < r.tuples(m); n++)
+                    s.sampleTuple(m, n);
+                return;
+            }
+            for (int x = 0, n = 0; x < runs[m].length; n += runs[m][x++])
+                s.sampleRun(m, n, runs[m][x]);
+            return;
+        }
+
+        int[] doc = documents[m];
+        int[] before = frameScratch[t];
+        byte[] age = stable != null ? stable[m] : null;
+        int old = age != null ? changedSize[m] : 0, size = old;
+        if (age != null)
+            Arrays.sort(changed[m], 0, old);
+        int units = runs != null ? runs[m].length : r.tuples(m);
+        for (int x = 0, n = 0; x < units; x++) {
+            int count = runs != null ? runs[m][x] : 1;
+            int from = n * R, to = (n + count) * R;
+            n += count;
+            if (age != null && age[x] >= SKIP_STABLE && !touchesChanged(m, from, to, old)
+                    && s.rng.nextDouble() >= Math.max(SKIP_FLOOR, SKIP_STABLE / (age[x] + 1.0))) {
+                for (int pos = from; pos < to; pos++)
+                    if (!isNull(doc, pos))
+                        skipped[t]++;
+                continue;
             }
-            int ndrcount = 0, ndrsumcount = 0;
-            for (int i = 0; i < R; i++) {
-                ndrcount += ndr[i][m][k];
-                ndrsumcount += ndrsum[i][m];
+
+            for (int pos = from; pos < to; pos++)
+                before[pos - from] = r.get(m, pos);
+            if (runs != null)
+                s.sampleRun(m, from / R, count);
+            else
+                s.sampleTuple(m, from / R);
+            boolean same = true;
+            for (int pos = from; pos < to; pos++) {
+                int f = r.get(m, pos);
+                if (f == before[pos - from] || isNull(doc, pos))
+                    continue;
+                same = false;
+                if (reassigned != null)
+                    reassigned[t]++;
+                if (age != null) {
+                    changed[m] = RoleSampler.append(changed[m], size++, before[pos - from]);
+                    changed[m] = RoleSampler.append(changed[m], size++, f);
+                }
             }
-            double docframe = (ndrcount + alpha) / (ndrsumcount + K*alpha);
-            p[k] = docframe * framerole;
-//            p[k] = (no[documents[m][n*3+2]][k] + beta) / (nosum[k] + O * beta)
-//                * (ns[documents[m][n*3]][k] + gamma) / (nosum[k] + S * gamma)
-//                * (np[documents[m][n*3+1]][k] + delta) / (npsum[k] + P * delta)
-//* (nds[m][k]+ndp[m][k]+ndo[m][k] + alpha) / (ndssum[m]+ndpsum[m]+ndosum[m] + K * alpha);
+            if (age != null)
+                age[x] = same ? (byte) Math.min(age[x] + 1, Byte.MAX_VALUE) : 0;
         }
-        // cumulate multinomial parameters
-        for (int k = 1; k < p.length; k++) {
-            p[k] += p[k - 1];
+        if (age != null) {
+            // keep the frames changed in this sweep for the next one
+            System.arraycopy(changed[m], old, changed[m], 0, size - old);
+            changedSize[m] = size - old;
         }
-        // scaled sample because of unnormalised p[]
-        double u = Math.random() * p[K - 1];
-        for (f = 0; f < p.length; f++) {
-            if (u < p[f])
-                break;
+    }
+
+    /**
+     * Whether a counted token in positions [from, to) of document m sits in
+     * a frame among the first size (sorted) entries of changed[m].
+     */
+    private boolean touchesChanged(int m, int from, int to, int size) {
+        if (size == 0)
+            return false;
+        int[] doc = documents[m];
+        for (int pos = from; pos < to; pos++)
+            if (!isNull(doc, pos) && Arrays.binarySearch(changed[m], 0, size, r.get(m, pos)) >= 0)
+                return true;
+        return false;
+    }
+
+    /**
+     * Tile the role tokens into THREADS x THREADS blocks: documents are cut
+     * into the ranges of the worker pool, and the words of each role into
+     * ranges of about equal frequency.
+     */
+    private void initBlocks() {
+        int P = THREADS;
+        int M = documents.length;
+        int[] docBounds = WorkerPool.partition(documents, P);
+        int[] docBlock = new int[M];
+        for (int t = 0; t < P; t++)
+            for (int m = docBounds[t]; m < docBounds[t + 1]; m++)
+                docBlock[m] = t;
+
+        blockTokens = new int[R][P][P][];
+        for (int j = 0; j < R; j++) {
+            int V = RC[j];
+            int[] freq = new int[V];
+            int total = 0;
+            for (int m = 0; m < M; m++)
+                for (int n = 0; n < r.tuples(m); n++) {
+                    if (documents[m][n*R+j] == nullWord[j])
+                        continue;
+                    freq[documents[m][n*R+j]]++;
+                    total++;
+                }
+            int[] wordBlock = new int[V];
+            long seen = 0;
+            for (int w = 0; w < V; w++) {
+                wordBlock[w] = (int) Math.min(P - 1, seen * P / Math.max(total, 1));
+                seen += freq[w];
+            }
+
+            int[][] size = new int[P][P];
+            for (int m = 0; m < M; m++)
+                for (int n = 0; n < r.tuples(m); n++)
+                    if (documents[m][n*R+j] != nullWord[j])
+                        size[docBlock[m]][wordBlock[documents[m][n*R+j]]]++;
+            for (int t = 0; t < P; t++)
+                for (int b = 0; b < P; b++)
+                    blockTokens[j][t][b] = new int[2 * size[t][b]];
+            int[][] fill = new int[P][P];
+            for (int m = 0; m < M; m++)
+                for (int n = 0; n < r.tuples(m); n++) {
+                    if (documents[m][n*R+j] == nullWord[j])
+                        continue;
+                    int t = docBlock[m], b = wordBlock[documents[m][n*R+j]];
+                    blockTokens[j][t][b][fill[t][b]++] = m;
+                    blockTokens[j][t][b][fill[t][b]++] = n;
+                }
         }
+    }
+
+    /**
+     * Block-scheduled sweep: for every role, THREADS rounds in which worker t
+     * samples the block (t, (t + round) mod THREADS). No two workers touch
+     * the same nr[j][w] or ndr[j][m] (nd[m]) row, so those are updated in
+     * place.
+     * nrsum[j][k] is touched by every token; each worker keeps its own copy
+     * which is summed back at the end of each round.
+     * 
+     * @return summed sampling time of all threads in nanoseconds
+     */
+    private long blockedSweep() {
+        final int P = THREADS;
+        long busy = 0;
+        for (int role = 0; role < R; role++) {
+            for (int round = 0; round < P; round++) {
+                final int j = role, shift = round;
+                pool.invoke(new WorkerPool.Job() {
+                    @Override
+                    public void run(int t, int from, int to) {
+                        localNrsum[t].copyFrom(nrsum);
+                        RoleSampler s = workerSamplers[t];
+                        s.init();
+                        int[] tokens = blockTokens[j][t][(t + shift) % P];
+                        for (int x = 0; x < tokens.length; x += 2) {
+                            int m = tokens[x], n = tokens[x + 1];
+                            if (minibatch != null && !minibatch.contains(m))
+                                continue;
+                            int f = s.sample(j, m, n);
+                            if (reassigned != null && f != r.get(j, m, n))
+                                reassigned[t]++;
+                            r.set(j, m, n, f);
+                        }
+                    }
+                });
+                busy += pool.busy();
+                for (int k = 0; k < K; k++) {
+                    int sum = 0;
+                    for (int t = 0; t < P; t++)
+                        sum += localNrsum[t].get(j, k);
+                    nrsum.set(j, k, sum - (P - 1) * nrsum.get(j, k));
+                }
+            }
+        }
+        return busy;
+    }
+
+    /**
+     * Hogwild sweep: every thread samples the tuples of its document range
+     * against the shared atomic counts.
+     * 
+     * @return summed sampling time of all threads in nanoseconds
+     */
+    private long hogwildSweep() {
+        pool.invoke(new WorkerPool.Job() {
+            @Override
+            public void run(int t, int from, int to) {
+                RoleSampler s = workerSamplers[t];
+                s.beginSweep();
+                sampleDocuments(s, t, from, to);
+            }
+        });
+        return pool.busy();
+    }
+
+    /**
+     * Approximate distributed LDA (Newman et al. 2009): every thread samples
+     * its document range against a private copy of nr/nrsum, then the
+     * per-thread changes are summed back into the global counts.
+     * 
+     * @return summed sampling time of all threads in nanoseconds
+     */
+    private long adLdaSweep() {
+        final int T = pool.threads;
+        pool.invoke(new WorkerPool.Job() {
+            @Override
+            public void run(int t, int from, int to) {
+                for (int j = 0; j < R; j++)
+                    localNr[t][j].copyFrom(nr[j]);
+                localNrsum[t].copyFrom(nrsum);
+                // only resync the engine with the merged counts
+                RoleSampler s = workerSamplers[t];
+                s.beginSweep();
+                sampleDocuments(s, t, from, to);
+            }
+        });
+        long busy = pool.busy();
 
-        // add newly estimated z_i to count variables
-        nr[j][documents[m][n*R+j]][f]++; // mapping position
-        ndr[j][m][f]++;
-        nrsum[j][f]++;
-        ndrsum[j][m]++;
+        // nr = nr + sum_t (local_t - nr), split by word
+        pool.invoke(new WorkerPool.Job() {
+            @Override
+            public void run(int t, int from, int to) {
+                for (int j = 0; j < R; j++)
+                    for (int w = RC[j] * t / T; w < RC[j] * (t + 1) / T; w++)
+                        for (int k = 0; k < K; k++) {
+                            int sum = 0;
+                            for (int x = 0; x < T; x++)
+                                sum += localNr[x][j].get(w, k);
+                            nr[j].set(w, k, sum - (T - 1) * nr[j].get(w, k));
+                        }
+            }
+        });
+        for (int j = 0; j < R; j++)
+            for (int k = 0; k < K; k++) {
+                int sum = 0;
+                for (int x = 0; x < T; x++)
+                    sum += localNrsum[x].get(j, k);
+                nrsum.set(j, k, sum - (T - 1) * nrsum.get(j, k));
+            }
+        return busy;
+    }
+    
+    /**
+     * Create the full-conditional engine selected in configure() on top of
+     * the given frame--role counts.
+     */
+    private RoleSampler createSampler(CountMatrix[] nr, CountMatrix nrsum, RandomSource rng) {
+        switch (SAMPLER) {
+        case SPARSE:
+            return new SparseRoleSampler(this, nr, nrsum, rng);
+        case ALIAS:
+            return new AliasRoleSampler(this, nr, nrsum, rng);
+        default:
+            return new DenseRoleSampler(this, nr, nrsum, rng);
+        }
+    }
 
-        return f;
+    /**
+     * Joint log-likelihood log p(w, z) of the role words and the current
+     * frame assignments, with theta and phi integrated out. Only the
+     * non-zero counts are visited, each with one table lookup.
+     */
+    public double logLikelihood() {
+        if (lgRole == null) {
+            lgRole = new LogGammaTable[R];
+            lgRoleSum = new LogGammaTable[R];
+            for (int j = 0; j < R; j++) {
+                lgRole[j] = new LogGammaTable(betas[j]);
+                lgRoleSum[j] = new LogGammaTable(RC[j] * betas[j]);
+            }
+            lgDoc = new LogGammaTable(alpha);
+            lgDocSum = new LogGammaTable(K * alpha);
+        }
+        int[] frames = new int[K], counts = new int[K];
+        double ll = 0;
+        for (int j = 0; j < R; j++) {
+            for (int w = 0; w < RC[j]; w++) {
+                int size = nr[j].readNonZero(w, frames, counts);
+                for (int x = 0; x < size; x++)
+                    ll += lgRole[j].get(counts[x]);
+            }
+            for (int k = 0; k < K; k++)
+                ll -= lgRoleSum[j].get(nrsum.get(j, k));
+        }
+        for (int m = 0; m < documents.length; m++) {
+            int size = nd.readNonZero(m, frames, counts);
+            for (int x = 0; x < size; x++)
+                ll += lgDoc.get(counts[x]);
+            ll -= lgDocSum.get(ndsum[m]);
+        }
+        return ll;
     }
 
+    /**
+     * Layout of the document--frame counts. A document row holds at most as
+     * many non-zero frames as the document has role tokens, so HYBRID keeps
+     * them sparse; the other word-side layouts keep plain rows, which the
+     * kernels probe frame by frame.
+     */
+    private CountLayout documentLayout() {
+        if (LAYOUT == CountLayout.PACKED || LAYOUT == CountLayout.HYBRID)
+            return LAYOUT;
+        return CountLayout.WORD_MAJOR;
+    }
 
     /**
      * Add to the statistics the values of theta and phi for the current state.
      */
     private void updateParams() {
+        // ndsum[m] does not change during the chain, so the mean of theta
+        // only needs the summed counts
+        int[] frames = new int[K], counts = new int[K];
         for (int m = 0; m < documents.length; m++) {
-            for (int k = 0; k < K; k++) {
-                int ndrcount = 0, ndrsumcount = 0;
-                for (int j = 0; j < R; j++) {
-                    ndrcount += ndr[j][m][k];
-                    ndrsumcount += ndrsum[j][m];
-//                    thetasum[m][k] += (nds[m][k]+ndp[m][k]+ndo[m][k] + alpha) 
-//                            / (ndssum[m]+ndpsum[m]+ndosum[m] + K * alpha);
-                }
-                thetasum[m][k] += (ndrcount+alpha) / (ndrsumcount + K*alpha);
-            }
+            int size = nd.readNonZero(m, frames, counts);
+            for (int x = 0; x < size; x++)
+                thetasum.add(m, frames[x], counts[x]);
         }
-        for (int k = 0; k < K; k++) {
-            for (int w = 0; w < V; w++) {
-                for (int j = 0; j < R; j++) {
-                    phisum[j][k][w] += (nr[j][w][k] + betas[j]) / (nrsum[j][k] + RC[j] * betas[j]);
-                }
+        for (int j = 0; j < R; j++)
+            accumulatePhi(j, phisum[j]);
 //                phisum[k][w] += (no[w][k] + beta) / (nosum[k] + O * beta);
 //                zetasum[k][w] += (np[w][k] + delta) / (npsum[k] + P * delta);
 //                psisum[k][w] += (ns[w][k] + gamma) / (nssum[k] + S * gamma);
+        numstats++;
+    }
+
+    /**
+     * Add the current estimate of phi for role j to dst (K x RC[j]), walking
+     * nr[j] in its storage order.
+     */
+    private void accumulatePhi(int j, SumMatrix dst) {
+        CountMatrix counts = nr[j];
+        int V = RC[j];
+        if (counts.frameMajor()) {
+            for (int k = 0; k < K; k++) {
+                double norm = nrsum.get(j, k) + RC[j] * betas[j];
+                for (int w = 0; w < V; w++)
+                    dst.add(k, w, (counts.get(w, k) + betas[j]) / norm);
             }
+        } else {
+            double[] norm = new double[K];
+            for (int k = 0; k < K; k++)
+                norm[k] = nrsum.get(j, k) + RC[j] * betas[j];
+            for (int w = 0; w < V; w++)
+                for (int k = 0; k < K; k++)
+                    dst.add(k, w, (counts.get(w, k) + betas[j]) / norm[k]);
         }
-        numstats++;
     }
 
     /**
@@ -242,26 +802,52 @@ public class MultiRoleTlda {
      * @return theta multinomial mixture of document frames (M x K)
      */
     public double[][] getTheta() {
-        if (SAMPLE_LAG > 0) {
-            for (int m = 0; m < documents.length; m++) 
-                for (int k = 0; k < K; k++) 
-                    theta[m][k] = thetasum[m][k] / numstats;
-        } else {
-            for (int m = 0; m < documents.length; m++) {
-                for (int k = 0; k < K; k++) {
-                    int ndrcount = 0, ndrsumcount = 0;
-                    for (int j = 0; j < R; j++) {
-                        ndrcount += ndr[j][m][k];
-                        ndrsumcount += ndrsum[j][m];
-                    }
-//                    theta[m][k] = (nd[m][k] + alpha) / (ndsum[m] + K * alpha);
-                    theta[m][k] = (ndrcount + alpha) / (ndrsumcount + K * alpha);
-                }
-            }
+        if (theta == null)
+            theta = new double[documents.length][K];
+        int[] frames = new int[K];
+        double[] values = new double[K];
+        for (int m = 0; m < documents.length; m++) {
+            Arrays.fill(theta[m], getThetaFloor(m));
+            int size = getTheta(m, frames, values);
+            for (int x = 0; x < size; x++)
+                theta[m][frames[x]] = values[x];
         }
-
         return theta;
     }
+
+    /**
+     * Retrieve the estimated frames of one document without materialising
+     * the M x K matrix: the frames with a non-zero count (summed over the
+     * statistics if sample lag > 0) are stored in frames[] and their
+     * probabilities in theta[]; every other frame has probability
+     * {@link #getThetaFloor(int)}.
+     * 
+     * @param m
+     *            document index
+     * @param frames
+     *            receives the active frames in increasing order, length K
+     * @param theta
+     *            receives their probabilities, length K
+     * @return the number of active frames
+     */
+    public int getTheta(int m, int[] frames, double[] theta) {
+        CountMatrix counts = SAMPLE_LAG > 0 ? thetasum : nd;
+        double samples = SAMPLE_LAG > 0 ? numstats : 1;
+        if (thetaCounts.length != K)
+            thetaCounts = new int[K];
+        int size = counts.readNonZero(m, frames, thetaCounts);
+        for (int x = 0; x < size; x++)
+            theta[x] = (thetaCounts[x] / samples + alpha) / (ndsum[m] + K * alpha);
+        return size;
+    }
+
+    /**
+     * Probability of the frames of document m that {@link #getTheta(int, int[], double[])}
+     * leaves out.
+     */
+    public double getThetaFloor(int m) {
+        return alpha / (ndsum[m] + K * alpha);
+    }
     
     
 
@@ -269,19 +855,26 @@ public class MultiRoleTlda {
      * Retrieve estimated frame--word associations. If sample lag > 0 then the
      * mean value of all sampled statistics for phi[][] is taken.
      * 
-     * @return phi multinomial mixture of frame words (K x V)
+     * @return phi multinomial mixture of frame words (R x K x RC[j]), indexed
+     *         by the role's own word ids
      */
     public double[][][] getPhi() {
+        if (phi == null) {
+            phi = new double[R][][];
+            for (int j = 0; j < R; j++)
+                phi[j] = new double[K][RC[j]];
+        }
         if (SAMPLE_LAG > 0) {
             for (int j = 0; j < R; j++) 
                 for (int k = 0; k < K; k++) 
-                    for (int w = 0; w < V; w++)
-                        phi[j][k][w] = phisum[j][k][w] / numstats;
+                    for (int w = 0; w < RC[j]; w++)
+                        phi[j][k][w] = phisum[j].get(k, w) / numstats;
         } else {
-            for (int j = 0; j < R; j++) 
-                for (int k = 0; k < K; k++) 
-                    for (int w = 0; w < V; w++) 
-                        phi[j][k][w] = (nr[j][w][k] + betas[j]) / (nrsum[j][k] + RC[j] * betas[j]);
+            for (int j = 0; j < R; j++) {
+                for (int k = 0; k < K; k++)
+                    Arrays.fill(phi[j][k], 0);
+                accumulatePhi(j, new SumMatrix(phi[j]));
+            }
         }
         return phi;
     }
@@ -306,13 +899,291 @@ public class MultiRoleTlda {
         this.SAMPLE_LAG = sampleLag;
     }
 
+    /**
+     * Configure the gibbs sampler
+     * 
+     * @param iterations
+     *            number of total iterations
+     * @param burnIn
+     *            number of burn-in iterations
+     * @param thinInterval
+     *            update statistics interval
+     * @param sampleLag
+     *            sample interval (-1 for just one sample at the end)
+     * @param sampler
+     *            full-conditional engine; SPARSE only visits the non-zero
+     *            document--frame and frame--role counts of a token, ALIAS
+     *            uses Metropolis-Hastings with alias-table proposals and does
+     *            not depend on the number of frames
+     */
+    public void configure(int iterations, int burnIn, int thinInterval,
+            int sampleLag, SamplerType sampler) {
+        configure(iterations, burnIn, thinInterval, sampleLag);
+        this.SAMPLER = sampler;
+    }
+
+    /**
+     * Configure the gibbs sampler
+     * 
+     * @param iterations
+     *            number of total iterations
+     * @param burnIn
+     *            number of burn-in iterations
+     * @param thinInterval
+     *            update statistics interval
+     * @param sampleLag
+     *            sample interval (-1 for just one sample at the end)
+     * @param sampler
+     *            full-conditional engine
+     * @param seed
+     *            random seed; serial, AD_LDA and BLOCKED runs with the same
+     *            seed and thread count give the same chain
+     */
+    public void configure(int iterations, int burnIn, int thinInterval,
+            int sampleLag, SamplerType sampler, long seed) {
+        configure(iterations, burnIn, thinInterval, sampleLag, sampler);
+        this.rng = new Xoroshiro128(seed);
+    }
+
+    /**
+     * Replace the random number generator, e.g. with another RandomSource
+     * implementation. Worker threads get streams split from it.
+     */
+    public void configureRandom(RandomSource rng) {
+        this.rng = rng;
+    }
+
+    /**
+     * Configure parallel sampling
+     * 
+     * @param mode
+     *            sweep scheduling; AD_LDA partitions the documents over the
+     *            threads, each sampling against its own copy of the
+     *            frame--role counts which are reduced after every sweep;
+     *            HOGWILD lets the threads share a single copy of the counts
+     *            updated with atomic adds (dense kernel only); BLOCKED
+     *            tiles documents x words into THREADS x THREADS blocks and
+     *            runs conflict-free diagonals of blocks (dense kernel only)
+     * @param threads
+     *            number of sampling threads
+     * @throws IllegalArgumentException
+     *             if the mode does not support the configured sampler or
+     *             count layout; HOGWILD shares word-major atomic counts;
+     *             BLOCKED does not sample runs of a collapsed corpus
+     */
+    public void configureParallel(ParallelMode mode, int threads) {
+        this.PARALLEL = mode;
+        this.THREADS = threads;
+        checkParallel();
+        checkCollapse();
+    }
+
+    /**
+     * Reject the sampler and layout combinations the parallel mode would
+     * otherwise silently replace.
+     */
+    private void checkParallel() {
+        if (THREADS <= 1)
+            return;
+        if ((PARALLEL == ParallelMode.HOGWILD || PARALLEL == ParallelMode.BLOCKED)
+                && SAMPLER != SamplerType.DENSE)
+            throw new IllegalArgumentException(PARALLEL + " only runs the "
+                    + SamplerType.DENSE + " sampler, not " + SAMPLER);
+        if (PARALLEL == ParallelMode.HOGWILD && LAYOUT != CountLayout.WORD_MAJOR)
+            throw new IllegalArgumentException(PARALLEL + " only shares "
+                    + CountLayout.WORD_MAJOR + " counts, not " + LAYOUT);
+    }
+
+    /**
+     * Reject the collapsed corpus for engines that would resample its runs
+     * copy by copy anyway.
+     */
+    private void checkCollapse() {
+        if (runs == null)
+            return;
+        if (SAMPLER == SamplerType.ALIAS)
+            throw new IllegalArgumentException(SAMPLER
+                    + " does not sample runs of identical tuples, index without collapse");
+        if (PARALLEL == ParallelMode.BLOCKED && THREADS > 1)
+            throw new IllegalArgumentException(PARALLEL
+                    + " does not sample runs of identical tuples, index without collapse");
+    }
+
+    /**
+     * Configure the memory layout of the frame--role counts
+     * 
+     * @param layout
+     *            WORD_MAJOR keeps the K counts of a role word next to each
+     *            other, which is what the samplers read per token;
+     *            FRAME_MAJOR keeps the V counts of a frame next to each
+     *            other, which favours phi estimation over large vocabularies;
+     *            HYBRID stores the rows of rare words and of documents as
+     *            sorted (frame, count) pairs and only frequent words as full
+     *            rows; PACKED stores the frame--role and document--frame
+     *            counts in 8-bit cells, widening a row to 16 or 32 bits when
+     *            a count overflows
+     */
+    public void configureLayout(CountLayout layout) {
+        this.LAYOUT = layout;
+    }
+
+    /**
+     * Configure the floating-point precision of sampling
+     * 
+     * @param precision
+     *            SINGLE evaluates the dense full conditional in float,
+     *            falling back to double for tokens whose probabilities
+     *            underflow, and keeps the cumulative statistics of phi in
+     *            float; the SPARSE and ALIAS kernels only visit a
+     *            few frames per token and always use double
+     */
+    public void configurePrecision(Precision precision) {
+        this.PRECISION = precision;
+    }
+
+    /**
+     * Leave the role slots filled with the literal "null" out of the model
+     * 
+     * @param skip
+     *            if true, a null slot is neither sampled nor counted in
+     *            nr/ndr/nd, and the full conditional of the other roles of
+     *            its tuple only has factors for the roles that are present;
+     *            the null words keep an empty row, so that phi gives them
+     *            nothing but prior mass
+     */
+    public void configureNullRoles(boolean skip) {
+        this.SKIP_NULL = skip;
+    }
+
+    /**
+     * Configure the skip-stable sweep schedule, which trades the exactness of
+     * the chain for cheaper late sweeps
+     * 
+     * @param sweeps
+     *            number of sweeps (at most 127) a tuple has to keep all its
+     *            frames before it may be skipped; a stable tuple is then
+     *            resampled with probability sweeps / (age + 1), age being
+     *            the number of sweeps it has kept its frames, so the longer
+     *            it stays the less often it is visited; tuples with a frame
+     *            whose document count changed in the previous sweep are
+     *            always resampled; 0 resamples every tuple. The BLOCKED mode
+     *            samples role by role and ignores the schedule
+     * @param floor
+     *            lowest resampling probability of a stable tuple
+     */
+    public void configureSkipStable(int sweeps, double floor) {
+        if (sweeps > Byte.MAX_VALUE)
+            throw new IllegalArgumentException("Stable sweeps above "
+                    + Byte.MAX_VALUE + ": " + sweeps);
+        this.SKIP_STABLE = sweeps;
+        this.SKIP_FLOOR = floor;
+    }
+
+    /**
+     * Configure minibatch sweeps
+     * 
+     * @param fraction
+     *            share of the documents resampled per iteration, 1 for full
+     *            sweeps; an iteration then costs about that share of a full
+     *            sweep. BURN_IN, SAMPLE_LAG and the number of iterations
+     *            still count iterations, so they have to be scaled by
+     *            1 / fraction to span the same number of full sweeps
+     * @param schedule
+     *            RANDOM draws the documents of every iteration independently;
+     *            CYCLIC goes through a shuffled order of the corpus, so that
+     *            every document is visited once per 1 / fraction iterations
+     */
+    public void configureMinibatch(double fraction, MinibatchSchedule schedule) {
+        this.MINIBATCH = fraction;
+        this.BATCH_SCHEDULE = schedule;
+    }
+
+    /**
+     * Start the chain from the frames of a previous model instead of
+     * uniformly random ones
+     * 
+     * @param frameRoleDist
+     *            frame--role distribution written by
+     *            {@link #printFrameRoleDist(PrintWriter, double)}; each tuple
+     *            starts in a frame drawn in proportion to the product of the
+     *            phi of its role words, words below the printing threshold
+     *            counting as the smallest probability listed for their role
+     * @param burnIn
+     *            burn-in replacing the configured one if shorter; the chain
+     *            is shortened by the same number of iterations
+     */
+    public void configureWarmStart(String frameRoleDist, int burnIn) throws IOException {
+        this.warmStart = WarmStart.fromModel(frameRoleDist, indexer, roleNames);
+        this.WARM_BURN_IN = burnIn;
+    }
+
+    /**
+     * Start the chain from clusters of the words of one role instead of
+     * uniformly random frames
+     * 
+     * @param role
+     *            role whose words are clustered, usually the predicate; its
+     *            words are grouped into K clusters by the words of the other
+     *            roles they occur with, and every tuple starts in the cluster
+     *            of its word
+     * @param burnIn
+     *            see {@link #configureWarmStart(String, int)}
+     */
+    public void configureWarmStart(int role, int burnIn) {
+        this.warmStart = WarmStart.fromClusters(role, roleNames[role]);
+        this.WARM_BURN_IN = burnIn;
+    }
+
+    /**
+     * Monitor the chain and stop it early once it looks stationary
+     * 
+     * @param interval
+     *            iterations between evaluations of the joint log-likelihood,
+     *            0 to run the configured number of iterations unmonitored;
+     *            every sweep of a monitored chain also reports how many
+     *            assignments changed
+     * @param tolerance
+     *            the chain is stationary once the log-likelihood gained less
+     *            than this share of its magnitude since the previous check,
+     *            and the share of assignments changed per sweep fell by less
+     *            than this; burn-in then ends early, and with statistics the
+     *            configured number of iterations after burn-in still follows,
+     *            without them the chain stops
+     */
+    public void configureEarlyStop(int interval, double tolerance) {
+        this.CHECK_INTERVAL = interval;
+        this.TOLERANCE = tolerance;
+    }
+
+    /**
+     * Whether the token at position pos of doc is a null slot left out of
+     * the model.
+     */
+    boolean isNull(int[] doc, int pos) {
+        return doc[pos] == nullWord[pos % R];
+    }
+
+    /**
+     * Approximate heap footprint of the frame--role and document--frame
+     * counts in bytes.
+     */
+    public long countMemory() {
+        long total = nrsum.bytes() + nd.bytes();
+        for (int j = 0; j < R; j++)
+            total += nr[j].bytes() + ndr[j].bytes();
+        return total;
+    }
+
     public void printDocFrameDist(PrintWriter pw) {
-        double[][] theta = getTheta();
+        int[] frames = new int[K];
+        double[] theta = new double[K];
         for (int d = 0; d < documents.length; d++) {
             pw.append("Document" + d + "\n");
-            for (int k = 0; k < K; k++) {
+            String floor = String.valueOf(getThetaFloor(d));
+            int size = getTheta(d, frames, theta);
+            for (int k = 0, x = 0; k < K; k++) {
                 pw.append("**Frame " + k + ": ");
-                pw.append(String.valueOf(theta[d][k]));
+                pw.append(x < size && frames[x] == k ? String.valueOf(theta[x++]) : floor);
                 pw.append("\n");
             }
             pw.append("\n\n");
@@ -325,9 +1196,9 @@ public class MultiRoleTlda {
             pw.append("=== Frame " + k + " ===\n");
             for (int j = 0; j < R; j++) {
                 pw.append("=>Role type: " + roleNames[j] + "\n");
-                for (int w = 0; w < V; w++) {
+                for (int w = 0; w < RC[j]; w++) {
                     if (phi[j][k][w] >= theshold)
-                        pw.append(indexer.index2Word(w) + ": " + phi[j][k][w] + "\n");
+                        pw.append(indexer.index2Word(j, w) + ": " + phi[j][k][w] + "\n");
                 }
             }
             pw.append("\n\n");
@@ -335,14 +1206,14 @@ public class MultiRoleTlda {
     }
 
     public void printFrameAssign(PrintWriter pw) {
-        for (int j = 0; j < r.length; j++) {
+        for (int j = 0; j < R; j++) {
             pw.append("======== " + roleNames[j] + " ========\n");
-            for (int m = 0; m < r[j].length; m++) {
-                for (int n = j; n < r[j][m].length; n+=R) {
+            for (int m = 0; m < documents.length; m++) {
+                for (int n = j; n < documents[m].length; n+=R) {
                     if (n % 10 == 0)
                         pw.append("\n");
-                    pw.append(documents[m][n]+"("+indexer.index2Word(documents[m][n])
-                            +"):"+r[j][m][n] + " ");
+                    pw.append(documents[m][n]+"("+indexer.index2Word(j, documents[m][n])
+                            +"):"+r.get(m, n) + " ");
                 }
             }
             pw.append("\n\n");
@@ -357,8 +1228,8 @@ public class MultiRoleTlda {
             for (int j = 0; j < R; j++) {
                 pw.append("=>Role type: " + roleNames[j] + "\n");
                 Map<String, Double> rolesDist = new TreeMap<String, Double>();
-                for (int w = 0; w < V; w++) {
-                    rolesDist.put(indexer.index2Word(w), phi[j][k][w]);
+                for (int w = 0; w < RC[j]; w++) {
+                    rolesDist.put(indexer.index2Word(j, w), phi[j][k][w]);
                 }
                 Set<Entry<String, Double>> entries = rolesDist.entrySet();
                 List<Entry<String, Double>> lists = new ArrayList<Entry<String, Double>>(entries);
@@ -421,7 +1292,20 @@ public class MultiRoleTlda {
         int burnIn = 500;
         int thinInterval = 5;
         int sampleLag = 5;
-        lda.configure(iterations, burnIn, thinInterval, sampleLag);
+        lda.configure(iterations, burnIn, thinInterval, sampleLag, SamplerType.SPARSE);
+        // warm-start only from a model given on the command line, never from
+        // the output of an earlier run, so that reruns stay independent
+        if (args.length > 0) {
+            File previous = new File(args[0]);
+            if (previous.getCanonicalFile().equals(new File(dir + "model.frd").getCanonicalFile()))
+                throw new IllegalArgumentException("Warm start from the output file " + args[0]);
+            System.out.println("Initial frames from " + previous.getPath() + ".");
+            lda.configureWarmStart(previous.getPath(), 50);
+        } else {
+            System.out.println("Random initial frames.");
+        }
+        // end the burn-in once the chain looks stationary
+        lda.configureEarlyStop(10, 3e-5);
         lda.gibbs(K, alpha, betas);
 
         PrintWriter fassign = new PrintWriter(dir+"model.fassign");
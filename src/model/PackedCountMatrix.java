@@ -0,0 +1,149 @@
+package model;
+
+/**
+ * Word-major count matrix whose rows start with 8-bit cells. A row is
+ * promoted to 16-bit and then to 32-bit cells the first time one of its
+ * counts does not fit; rows are never narrowed again. Cells are read as
+ * unsigned, so a byte row holds counts up to 255 and a short row up to 65535.
+ *
+ * @author Yang Zhou
+ *
+ */
+class PackedCountMatrix extends CountMatrix {
+    private static final int BYTE_MAX = 0xFF;
+    private static final int SHORT_MAX = 0xFFFF;
+
+    // exactly one of the three is set for every row
+    private final byte[][] bytes;
+    private final short[][] shorts;
+    private final int[][] ints;
+
+    PackedCountMatrix(int rows, int cols) {
+        super(rows, cols);
+        bytes = new byte[rows][];
+        shorts = new short[rows][];
+        ints = new int[rows][];
+        for (int row = 0; row < rows; row++)
+            bytes[row] = new byte[cols];
+    }
+
+    @Override
+    int get(int row, int col) {
+        byte[] b = bytes[row];
+        if (b != null)
+            return b[col] & BYTE_MAX;
+        short[] s = shorts[row];
+        if (s != null)
+            return s[col] & SHORT_MAX;
+        return ints[row][col];
+    }
+
+    @Override
+    void set(int row, int col, int value) {
+        byte[] b = bytes[row];
+        if (b != null) {
+            if (value >= 0 && value <= BYTE_MAX) {
+                b[col] = (byte) value;
+                return;
+            }
+            widen(row, value);
+        }
+        short[] s = shorts[row];
+        if (s != null) {
+            if (value >= 0 && value <= SHORT_MAX) {
+                s[col] = (short) value;
+                return;
+            }
+            widen(row, value);
+        }
+        ints[row][col] = value;
+    }
+
+    @Override
+    void add(int row, int col, int delta) {
+        set(row, col, get(row, col) + delta);
+    }
+
+    @Override
+    void readRow(int row, int[] dst) {
+        byte[] b = bytes[row];
+        if (b != null) {
+            for (int col = 0; col < cols; col++)
+                dst[col] = b[col] & BYTE_MAX;
+            return;
+        }
+        short[] s = shorts[row];
+        if (s != null) {
+            for (int col = 0; col < cols; col++)
+                dst[col] = s[col] & SHORT_MAX;
+            return;
+        }
+        System.arraycopy(ints[row], 0, dst, 0, cols);
+    }
+
+    @Override
+    void copyFrom(CountMatrix other) {
+        if (!(other instanceof PackedCountMatrix) || other.rows != rows
+                || other.cols != cols) {
+            super.copyFrom(other);
+            return;
+        }
+        PackedCountMatrix p = (PackedCountMatrix) other;
+        for (int row = 0; row < rows; row++) {
+            if (p.bytes[row] != null) {
+                if (bytes[row] == null) {
+                    // a wider row can hold the narrower counts as well
+                    for (int col = 0; col < cols; col++)
+                        set(row, col, p.bytes[row][col] & BYTE_MAX);
+                } else {
+                    System.arraycopy(p.bytes[row], 0, bytes[row], 0, cols);
+                }
+            } else if (p.shorts[row] != null) {
+                if (bytes[row] != null)
+                    widen(row, BYTE_MAX + 1);
+                if (shorts[row] == null) {
+                    for (int col = 0; col < cols; col++)
+                        set(row, col, p.shorts[row][col] & SHORT_MAX);
+                } else {
+                    System.arraycopy(p.shorts[row], 0, shorts[row], 0, cols);
+                }
+            } else {
+                if (ints[row] == null)
+                    widen(row, -1);
+                System.arraycopy(p.ints[row], 0, ints[row], 0, cols);
+            }
+        }
+    }
+
+    @Override
+    long bytes() {
+        long total = 3 * (16 + 4L * rows);
+        for (int row = 0; row < rows; row++) {
+            if (bytes[row] != null)
+                total += 16 + cols;
+            else if (shorts[row] != null)
+                total += 16 + 2L * cols;
+            else
+                total += 16 + 4L * cols;
+        }
+        return total;
+    }
+
+    /**
+     * Promote a row to the narrowest cells that hold value.
+     */
+    private void widen(int row, int value) {
+        int[] counts = new int[cols];
+        readRow(row, counts);
+        bytes[row] = null;
+        shorts[row] = null;
+        if (value >= 0 && value <= SHORT_MAX) {
+            short[] s = new short[cols];
+            for (int col = 0; col < cols; col++)
+                s[col] = (short) counts[col];
+            shorts[row] = s;
+        } else {
+            ints[row] = counts;
+        }
+    }
+}
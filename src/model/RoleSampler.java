@@ -0,0 +1,147 @@
+package model;
+
+import java.util.Arrays;
+
+import util.RandomSource;
+
+/**
+ * Full-conditional sampling engine for the role tokens of a
+ * {@link MultiRoleTlda} chain. An engine reads the document side of the chain
+ * (documents, assignments, document--frame counts) from the model and the
+ * word side (frame--role counts) from the matrices it is built on.
+ * 
+ * @author Yang Zhou
+ * 
+ */
+abstract class RoleSampler {
+    protected final MultiRoleTlda lda;
+    protected final CountMatrix[] nr; // number of instances of role i assigned to frame j
+    protected final CountMatrix nrsum; // total number of roles i assigned to frame j
+    protected final RandomSource rng; // owned by the thread running this engine
+    boolean merged; // the counts are replaced by merged ones between sweeps
+
+    RoleSampler(MultiRoleTlda lda, CountMatrix[] nr, CountMatrix nrsum, RandomSource rng) {
+        this.lda = lda;
+        this.nr = nr;
+        this.nrsum = nrsum;
+        this.rng = rng;
+    }
+
+    /**
+     * Build any auxiliary state from the current counts. Called once the chain
+     * has been initialised and whenever the counts were changed from outside.
+     */
+    void init() {
+    }
+
+    /**
+     * Called before every sweep over the corpus. Engines whose counts were
+     * merged since the last sweep re-read what they cache here, without
+     * rebuilding everything as {@link #init()} does.
+     */
+    void beginSweep() {
+    }
+
+    /**
+     * Remove the current frame of a role token from the counts, draw a new one
+     * from the full conditional and add it back. The token must not be a
+     * null slot left out of the model; the full conditional only has factors
+     * for the roles of the tuple that are present.
+     * 
+     * @param j
+     *            role type
+     * @param m
+     *            document index
+     * @param n
+     *            tuple index
+     * @return the new frame
+     */
+    abstract int sample(int j, int m, int n);
+
+    /**
+     * Resample the R role tokens of tuple n of document m in turn, skipping
+     * the null slots left out of the model, and store the new frames in the
+     * chain. Engines that can share work between the roles of a tuple
+     * override this.
+     * 
+     * @param m
+     *            document index
+     * @param n
+     *            tuple index
+     */
+    void sampleTuple(int m, int n) {
+        int[] doc = lda.documents[m];
+        for (int j = 0; j < lda.R; j++)
+            if (doc[n*lda.R+j] != lda.nullWord[j])
+                lda.r.set(j, m, n, sample(j, m, n));
+    }
+
+    /**
+     * Resample the count identical tuples n, n + 1, ... of document m, each
+     * copy with its own frames. Engines that can evaluate the shared full
+     * conditional once for the whole run override this.
+     */
+    void sampleRun(int m, int n, int count) {
+        for (int c = n; c < n + count; c++)
+            sampleTuple(m, c);
+    }
+
+    /**
+     * Append k to a non-zero frame list holding size entries, growing it if
+     * needed.
+     */
+    static int[] append(int[] list, int size, int k) {
+        if (size == list.length)
+            list = Arrays.copyOf(list, list.length * 2);
+        list[size] = k;
+        return list;
+    }
+
+    /**
+     * Bring the non-zero frame lists of all role words up to date with the
+     * counts, which may have been changed from outside. Frames still in use
+     * keep their place, so that a list the engine kept in sync itself stays
+     * as it is, and new frames are appended. Only the non-zero counts of
+     * each word are read.
+     */
+    void syncFrameLists(int[][][] wordFrames, int[][] wordFrameSize) {
+        int K = lda.K;
+        int[] frames = new int[K], counts = new int[K];
+        boolean[] used = new boolean[K];
+        for (int i = 0; i < lda.R; i++)
+            for (int w = 0; w < nr[i].rows; w++) {
+                int size = nr[i].readNonZero(w, frames, counts);
+                for (int x = 0; x < size; x++)
+                    used[frames[x]] = true;
+                int[] list = wordFrames[i][w];
+                int kept = 0;
+                for (int x = 0; x < wordFrameSize[i][w]; x++)
+                    if (used[list[x]]) {
+                        used[list[x]] = false;
+                        list[kept++] = list[x];
+                    }
+                for (int x = 0; x < size; x++)
+                    if (used[frames[x]]) {
+                        used[frames[x]] = false;
+                        list = append(list, kept++, frames[x]);
+                    }
+                wordFrames[i][w] = list;
+                wordFrameSize[i][w] = kept;
+            }
+    }
+
+    /**
+     * Remove k from a non-zero frame list holding size entries.
+     * 
+     * @return the new size
+     */
+    static int remove(int[] list, int size, int k) {
+        for (int x = 0; x < size; x++) {
+            if (list[x] == k) {
+                list[x] = list[--size];
+                break;
+            }
+        }
+        return size;
+    }
+}
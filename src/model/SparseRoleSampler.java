@@ -0,0 +1,442 @@
+package model;
+
+import java.util.Arrays;
+
+import util.FenwickTree;
+import util.RandomSource;
+
+/**
+ * SparseLDA-style kernel (Yao, Mimno and McCallum 2009) adapted to the
+ * multi-role full conditional
+ *
+ * <pre>
+ * p(k) ~ (nd[k] + alpha) * prod_i (nr[i][w_i][k] + b_i) / (nrsum[i][k] + RC[i] * b_i)
+ * </pre>
+ *
+ * Writing c[k] = prod_i 1 / (nrsum[i][k] + RC[i] * b_i) and B = prod_i b_i the
+ * mass splits into three buckets
+ *
+ * <pre>
+ * s = sum_k alpha * B * c[k]                                  (smoothing)
+ * r = sum_k nd[k] * B * c[k]                                  (document)
+ * q = sum_k (nd[k] + alpha) * c[k] * (prod_i (nr[i][w_i][k] + b_i) - B)  (word)
+ * </pre>
+ *
+ * s is kept up to date incrementally, r only visits the frames used by the
+ * document, read once from the non-zero entries of its document--frame row
+ * and then kept in a list that follows the document's updates, and q
+ * only the frames where at least one role word of the tuple has a non-zero
+ * count. The document denominator of the dense kernel does not
+ * depend on k and is dropped, so the stationary distribution is unchanged.
+ * A run of identical tuples builds q once and only updates the two frames
+ * each copy moves between.
+ * <p>
+ * When null slots are left out of the model the products only run over the
+ * roles present in a tuple, so c[k], B and the s and r buckets are kept for
+ * every pattern of absent roles that occurs in the corpus.
+ *
+ * @author Yang Zhou
+ *
+ */
+class SparseRoleSampler extends RoleSampler {
+    private static final int FENWICK_MIN_K = 256; // smoothing draw by tree from here
+
+    private int K, R;
+    private double alpha;
+    private double[] betas;
+
+    // one entry per pattern of absent roles, the first for complete tuples
+    private int[] nullable; // roles with null slots left out of the model
+    private int[] patterns; // bit x set if role nullable[x] is absent
+    private boolean[][] roles; // roles present in each pattern
+    private double[] bprod; // product of the priors of the present roles
+    private double[][] coef; // c[k]
+    private double[] sBucket; // smoothing bucket without the alpha * B factor
+    private FenwickTree[] smoothing; // over coef[], null for small K
+    private double[] rBucket; // document bucket of curDoc without the B factor
+    private int curDoc = -1;
+
+    private int[][][] wordFrames; // non-zero frames of each role word
+    private int[][] wordFrameSize;
+
+    // scratch space for the document bucket
+    private int[] docRow; // counts of curDoc, kept in sync by update()
+    private int[] docFrame; // non-zero frames of curDoc, kept in sync by update()
+    private int docFrameSize;
+    private int[] docCount;
+
+    // scratch space for the word bucket
+    private int[] stamp;
+    private int stampId;
+    private int[] qFrame;
+    private double[] qMass;
+    private int qSize;
+    private int[] qPos; // position of each frame of the bucket in qFrame
+    private int[][] rowCount; // non-zero counts of the tuple's role words, else 0
+
+    SparseRoleSampler(MultiRoleTlda lda, CountMatrix[] nr, CountMatrix nrsum, RandomSource rng) {
+        super(lda, nr, nrsum, rng);
+    }
+
+    @Override
+    void init() {
+        K = lda.K;
+        R = lda.R;
+        alpha = lda.alpha;
+        betas = lda.betas;
+
+        initPatterns();
+        int P = patterns.length;
+        bprod = new double[P];
+        coef = new double[P][K];
+        sBucket = new double[P];
+        rBucket = new double[P];
+        smoothing = new FenwickTree[P];
+        for (int x = 0; x < P; x++) {
+            bprod[x] = 1;
+            for (int i = 0; i < R; i++)
+                if (roles[x][i])
+                    bprod[x] *= betas[i];
+            for (int k = 0; k < K; k++)
+                coef[x][k] = coefficient(x, k);
+            smoothing[x] = K >= FENWICK_MIN_K ? new FenwickTree(K) : null;
+        }
+
+        wordFrames = new int[R][][];
+        wordFrameSize = new int[R][];
+        for (int i = 0; i < R; i++) {
+            int V = nr[i].rows;
+            wordFrames[i] = new int[V][];
+            wordFrameSize[i] = new int[V];
+            for (int w = 0; w < V; w++) {
+                wordFrames[i][w] = new int[2];
+                for (int k = 0; k < K; k++)
+                    if (nr[i].get(w, k) > 0)
+                        wordFrames[i][w] = append(wordFrames[i][w], wordFrameSize[i][w]++, k);
+            }
+        }
+
+        docRow = new int[K];
+        docFrame = new int[K];
+        docCount = new int[K];
+        stamp = new int[K];
+        stampId = 0;
+        qFrame = new int[K];
+        qMass = new double[K];
+        qPos = new int[K];
+        rowCount = new int[R][K];
+        curDoc = -1;
+    }
+
+    /**
+     * Collect the patterns of absent roles over all tuples of the corpus.
+     */
+    private void initPatterns() {
+        int count = 0;
+        nullable = new int[R];
+        for (int i = 0; i < R; i++)
+            if (lda.nullWord[i] >= 0)
+                nullable[count++] = i;
+        nullable = Arrays.copyOf(nullable, count);
+
+        patterns = new int[] {0};
+        if (count > 0) {
+            for (int m = 0; m < lda.documents.length; m++)
+                for (int n = 0; n < lda.r.tuples(m); n++) {
+                    int pattern = pattern(lda.documents[m], n);
+                    if (slot(pattern) < 0) {
+                        patterns = Arrays.copyOf(patterns, patterns.length + 1);
+                        patterns[patterns.length - 1] = pattern;
+                    }
+                }
+        }
+
+        roles = new boolean[patterns.length][R];
+        for (int x = 0; x < patterns.length; x++) {
+            Arrays.fill(roles[x], true);
+            for (int y = 0; y < nullable.length; y++)
+                if ((patterns[x] & 1 << y) != 0)
+                    roles[x][nullable[y]] = false;
+        }
+    }
+
+    private int pattern(int[] doc, int n) {
+        int pattern = 0;
+        for (int y = 0; y < nullable.length; y++)
+            if (doc[n*R+nullable[y]] == lda.nullWord[nullable[y]])
+                pattern |= 1 << y;
+        return pattern;
+    }
+
+    private int slot(int pattern) {
+        for (int x = 0; x < patterns.length; x++)
+            if (patterns[x] == pattern)
+                return x;
+        return -1;
+    }
+
+    /**
+     * Re-read the denominators and, if the counts were merged, the non-zero
+     * frames.
+     */
+    @Override
+    void beginSweep() {
+        if (merged)
+            syncFrameLists(wordFrames, wordFrameSize);
+        // refresh the incrementally maintained sums to stop rounding drift
+        for (int x = 0; x < patterns.length; x++) {
+            sBucket[x] = 0;
+            for (int k = 0; k < K; k++) {
+                coef[x][k] = coefficient(x, k);
+                sBucket[x] += coef[x][k];
+            }
+            if (smoothing[x] != null)
+                smoothing[x].build(coef[x]);
+        }
+        curDoc = -1;
+    }
+
+    @Override
+    int sample(int j, int m, int n) {
+        int[] doc = lda.documents[m];
+        int w = doc[n*R+j];
+        enterDocument(m);
+        int slot = nullable.length == 0 ? 0 : slot(pattern(doc, n));
+
+        // remove f_i from the count variables
+        int f = lda.r.get(j, m, n);
+        update(j, m, w, f, -1);
+
+        double q = fillWordBucket(doc, n, slot);
+        clearRows(slot);
+        f = draw(slot, q);
+
+        // add newly estimated z_i to count variables
+        update(j, m, w, f, 1);
+        return f;
+    }
+
+    /**
+     * The copies of a run share their role words, so the word bucket over
+     * the union of their non-zero frames is built once for the whole run.
+     * Each copy then only refreshes the masses of the frame its token
+     * leaves and of the one it joins, the only frames whose counts change.
+     */
+    @Override
+    void sampleRun(int m, int n, int count) {
+        if (count == 1) {
+            sampleTuple(m, n);
+            return;
+        }
+        int[] doc = lda.documents[m];
+        enterDocument(m);
+        int slot = nullable.length == 0 ? 0 : slot(pattern(doc, n));
+        boolean[] present = roles[slot];
+
+        double q = fillWordBucket(doc, n, slot);
+        for (int j = 0; j < R; j++) {
+            if (!present[j])
+                continue;
+            int w = doc[n*R+j];
+            for (int c = n; c < n + count; c++) {
+                int f = lda.r.get(j, m, c);
+                q += moveRun(j, m, w, f, -1, slot);
+                f = draw(slot, q);
+                q += moveRun(j, m, w, f, 1, slot);
+                lda.r.set(j, m, c, f);
+            }
+        }
+        clearRows(slot);
+    }
+
+    /**
+     * {@link #update(int, int, int, int, int)} for a token of a run, keeping
+     * the scratch rows and the word bucket in sync. A frame new to the
+     * tuple's words joins the bucket.
+     *
+     * @return change of the word bucket total
+     */
+    private double moveRun(int j, int m, int w, int f, int delta, int slot) {
+        update(j, m, w, f, delta);
+        rowCount[j][f] += delta;
+        if (stamp[f] != stampId) {
+            stamp[f] = stampId;
+            qPos[f] = qSize;
+            qFrame[qSize] = f;
+            qMass[qSize++] = 0;
+        }
+        double mass = wordMass(f, slot);
+        double change = mass - qMass[qPos[f]];
+        qMass[qPos[f]] = mass;
+        return change;
+    }
+
+    /**
+     * Make m the current document, reading its non-zero frames and its
+     * document bucket.
+     */
+    private void enterDocument(int m) {
+        if (m == curDoc)
+            return;
+        // other workers may have moved the old document since, so its
+        // non-zero frames cannot be trusted to clear the row
+        Arrays.fill(docRow, 0);
+        curDoc = m;
+        Arrays.fill(rBucket, 0);
+        docFrameSize = lda.nd.readNonZero(m, docFrame, docCount);
+        for (int x = 0; x < docFrameSize; x++) {
+            docRow[docFrame[x]] = docCount[x];
+            for (int y = 0; y < patterns.length; y++)
+                rBucket[y] += docCount[x] * coef[y][docFrame[x]];
+        }
+    }
+
+    /**
+     * Read the counts of the role words of tuple n and build the word bucket
+     * over the frames where some of them is non-zero.
+     *
+     * @return total mass of the word bucket
+     */
+    private double fillWordBucket(int[] doc, int n, int slot) {
+        boolean[] present = roles[slot];
+        // read each role word's counts once, as the word bucket needs them
+        // for every frame of the union
+        for (int i = 0; i < R; i++) {
+            if (!present[i])
+                continue;
+            int wi = doc[n*R+i];
+            int[] frames = wordFrames[i][wi];
+            for (int x = 0; x < wordFrameSize[i][wi]; x++)
+                rowCount[i][frames[x]] = nr[i].get(wi, frames[x]);
+        }
+
+        double q = 0;
+        qSize = 0;
+        if (++stampId == Integer.MAX_VALUE) {
+            Arrays.fill(stamp, 0);
+            stampId = 1;
+        }
+        for (int i = 0; i < R; i++) {
+            if (!present[i])
+                continue;
+            int wi = doc[n*R+i];
+            int[] frames = wordFrames[i][wi];
+            for (int x = 0; x < wordFrameSize[i][wi]; x++) {
+                int k = frames[x];
+                if (stamp[k] == stampId)
+                    continue;
+                stamp[k] = stampId;
+                double mass = wordMass(k, slot);
+                q += mass;
+                qPos[k] = qSize;
+                qFrame[qSize] = k;
+                qMass[qSize++] = mass;
+            }
+        }
+        return q;
+    }
+
+    /**
+     * Word bucket mass of frame k for the counts in the scratch rows.
+     */
+    private double wordMass(int k, int slot) {
+        double prod = 1;
+        for (int l = 0; l < R; l++)
+            if (roles[slot][l])
+                prod *= rowCount[l][k] + betas[l];
+        return (docRow[k] + alpha) * coef[slot][k] * (prod - bprod[slot]);
+    }
+
+    /**
+     * Zero the scratch rows over the frames of the word bucket.
+     */
+    private void clearRows(int slot) {
+        for (int i = 0; i < R; i++)
+            if (roles[slot][i])
+                for (int x = 0; x < qSize; x++)
+                    rowCount[i][qFrame[x]] = 0;
+    }
+
+    /**
+     * Draw a frame from the three buckets, q being the word bucket total.
+     */
+    private int draw(int slot, double q) {
+        double[] c = coef[slot];
+        double b = bprod[slot];
+        double s = alpha * b * sBucket[slot];
+        double rb = b * rBucket[slot];
+        double u = rng.nextDouble() * (s + rb + q);
+        int f = -1;
+        if (u < q) {
+            for (int x = 0; x < qSize; x++) {
+                f = qFrame[x];
+                u -= qMass[x];
+                if (u < 0)
+                    break;
+            }
+        } else if ((u -= q) < rb) {
+            for (int x = 0; x < docFrameSize; x++) {
+                f = docFrame[x];
+                u -= b * docRow[f] * c[f];
+                if (u < 0)
+                    break;
+            }
+        } else if (smoothing[slot] != null) {
+            f = smoothing[slot].search((u - rb) / (alpha * b));
+        } else {
+            u -= rb;
+            for (int k = 0; k < K; k++) {
+                f = k;
+                u -= alpha * b * c[k];
+                if (u < 0)
+                    break;
+            }
+        }
+        return f;
+    }
+
+    /**
+     * Apply a count change for role j of word w in document m at frame f and
+     * keep the buckets and the non-zero lists in sync.
+     */
+    private void update(int j, int m, int w, int f, int delta) {
+        for (int x = 0; x < patterns.length; x++) {
+            sBucket[x] -= coef[x][f];
+            rBucket[x] -= docRow[f] * coef[x][f];
+        }
+
+        nr[j].add(w, f, delta);
+        nrsum.add(j, f, delta);
+        lda.ndr[j].add(m, f, delta);
+        lda.ndrsum[j][m] += delta;
+        lda.nd.add(m, f, delta);
+        lda.ndsum[m] += delta;
+        docRow[f] += delta;
+        if (delta > 0 && docRow[f] == 1)
+            docFrame[docFrameSize++] = f;
+        else if (delta < 0 && docRow[f] == 0)
+            docFrameSize = remove(docFrame, docFrameSize, f);
+
+        int wordCount = nr[j].get(w, f);
+        if (delta > 0 && wordCount == 1)
+            wordFrames[j][w] = append(wordFrames[j][w], wordFrameSize[j][w]++, f);
+        else if (delta < 0 && wordCount == 0)
+            wordFrameSize[j][w] = remove(wordFrames[j][w], wordFrameSize[j][w], f);
+
+        for (int x = 0; x < patterns.length; x++) {
+            coef[x][f] = coefficient(x, f);
+            sBucket[x] += coef[x][f];
+            if (smoothing[x] != null)
+                smoothing[x].set(f, coef[x][f]);
+            rBucket[x] += docRow[f] * coef[x][f];
+        }
+    }
+
+    private double coefficient(int x, int k) {
+        double c = 1;
+        for (int i = 0; i < R; i++)
+            if (roles[x][i])
+                c /= nrsum.get(i, k) + lda.RC[i] * betas[i];
+        return c;
+    }
+}
@@ -0,0 +1,56 @@
+package model;
+
+import flag.Precision;
+
+/**
+ * Running sums of a rows x cols estimate, such as the cumulative statistics
+ * of theta and phi, held in double or in float cells. Float cells halve the
+ * footprint; the values added are probabilities and a few hundred samples
+ * of them lose nothing that matters for the averaged estimates.
+ *
+ * @author Yang Zhou
+ *
+ */
+class SumMatrix {
+    final int rows;
+    final int cols;
+
+    // exactly one of the two is set
+    private final double[][] doubles;
+    private final float[][] floats;
+
+    SumMatrix(int rows, int cols, Precision precision) {
+        this.rows = rows;
+        this.cols = cols;
+        if (precision == Precision.SINGLE) {
+            doubles = null;
+            floats = new float[rows][cols];
+        } else {
+            doubles = new double[rows][cols];
+            floats = null;
+        }
+    }
+
+    /**
+     * View on an existing double array, which is updated in place.
+     */
+    SumMatrix(double[][] values) {
+        this.rows = values.length;
+        this.cols = values.length > 0 ? values[0].length : 0;
+        doubles = values;
+        floats = null;
+    }
+
+    double get(int row, int col) {
+        if (floats != null)
+            return floats[row][col];
+        return doubles[row][col];
+    }
+
+    void add(int row, int col, double value) {
+        if (floats != null)
+            floats[row][col] += value;
+        else
+            doubles[row][col] += value;
+    }
+}
@@ -10,20 +10,24 @@ import java.util.List;
 
 import processor.Indexr;
 import structure.Document;
+import util.LogGammaTable;
+import util.RandomSource;
+import util.Utils;
+import util.Xoroshiro128;
+import flag.CountLayout;
+import flag.MinibatchSchedule;
+import flag.ParallelMode;
+import flag.Precision;
 
 public class Tlda {
 
     /**
-     * document data (term lists)
+     * document data (subject, predicate and object ids of the tuples)
      */
     private int[][] documents;
 
     private Indexr indexer;
 
-    /**
-     * vocabulary size
-     */
-    private int V;
     /**
      * Subject count
      */
@@ -58,34 +62,30 @@ public class Tlda {
      */
     // private int[][] z;
     
-    // frame assignments for each subject.
-    private int[][] s;
-    // frame assignments for each predicate.
-    private int[][] p;
-    // frame assignments for each object.
-    private int[][] o;
+    // frame assignments of the subject, predicate and object of each tuple
+    private FrameAssignment spo;
 
     /**
      * cwt[i][j] number of instances of word i (term?) assigned to frame j.
      */
     private int[][] nw;
     // number of instances of subject i assigned to frame j
-    private int[][] ns;
+    private CountMatrix ns;
     // number of instances of predicate i assigned to frame j
-    private int[][] np;
+    private CountMatrix np;
     // number of instances of object i assigned to frame j
-    private int[][] no;
+    private CountMatrix no;
 
     /**
      * na[i][j] number of words in document i assigned to frame j.
      */
     private int[][] nd;
     // number of subjects in document i assigned to frame j.
-    private int[][] nds;
+    private CountMatrix nds;
     // number of predicates in document i assigned to frame j.
-    private int[][] ndp;
+    private CountMatrix ndp;
     // number of objects in document i assigned to frame j.
-    private int[][] ndo;
+    private CountMatrix ndo;
 
     /**
      * nwsum[j] total number of words assigned to frame j.
@@ -112,14 +112,14 @@ public class Tlda {
     /**
      * cumulative statistics of theta, delta, gamma
      */
-    private double[][] thetasum;
+    private SumMatrix thetasum;
 
     /**
      * cumulative statistics of phi
      */
-    private double[][] phisum;
-    private double[][] zetasum;
-    private double[][] psisum;
+    private SumMatrix phisum;
+    private SumMatrix zetasum;
+    private SumMatrix psisum;
 
     /**
      * size of statistics
@@ -146,17 +146,152 @@ public class Tlda {
      */
     private int SAMPLE_LAG;
 
+    /**
+     * sweep scheduling
+     */
+    private ParallelMode PARALLEL = ParallelMode.SERIAL;
+
+    /**
+     * number of sampling threads
+     */
+    private int THREADS = 1;
+
+    /**
+     * random number generator, split per thread
+     */
+    private RandomSource rng = new Xoroshiro128(System.nanoTime());
+
+    /**
+     * storage of the count matrices
+     */
+    private CountLayout LAYOUT = CountLayout.WORD_MAJOR;
+
+    /**
+     * resample the (s, p, o) frames of a tuple in one blocked step instead
+     * of one element at a time
+     */
+    private boolean JOINT = false;
+
+    /**
+     * precision of the full conditional and the statistics
+     */
+    private Precision PRECISION = Precision.DOUBLE;
+
+    /**
+     * share of the documents swept per iteration
+     */
+    private double MINIBATCH = 1;
+    private MinibatchSchedule BATCH_SCHEDULE = MinibatchSchedule.RANDOM;
+
+    /**
+     * documents of the current iteration, null for all
+     */
+    private Minibatch minibatch;
+
+    /**
+     * iterations between convergence checks, 0 for none, and the tolerance
+     * of the stopping rule
+     */
+    private int CHECK_INTERVAL = 0;
+    private double TOLERANCE = 1e-3;
+
+    /**
+     * assignments this view changed in its last sweep
+     */
+    private long reassigned;
+
+    /**
+     * log Gamma(c + prior) - log Gamma(prior) of the log-likelihood terms,
+     * for the subjects, predicates and objects and for the documents
+     */
+    private LogGammaTable[] lgRole, lgRoleSum;
+    private LogGammaTable lgDoc, lgDocSum;
+
+    private WorkerPool pool;
+
+    /**
+     * AD-LDA views of this chain, one per thread
+     */
+    private Tlda[] workers;
+
+    /**
+     * scratch space of the full conditional, reused for every token
+     */
+    private double[] pdist;
+    private int[] srow;
+    private int[] prow;
+    private int[] orow;
+
+    /**
+     * cached 1 / (nssum[k] + S * gamma), 1 / (npsum[k] + P * delta) and
+     * 1 / (nosum[k] + O * beta)
+     */
+    private double[] invs;
+    private double[] invp;
+    private double[] invo;
+
+    /**
+     * single-precision scratch space and reciprocals, the latter scaled by
+     * the prior mass S * gamma, P * delta and O * beta
+     */
+    private float[] pdistf;
+    private float[] invsf;
+    private float[] invpf;
+    private float[] invof;
+    private boolean drawnSingle; // the last draw came from pdistf
+
+    /**
+     * below this total the frames lost to float underflow may carry more than
+     * one ulp of it
+     */
+    private static final float UNDERFLOW_GUARD = Float.MIN_NORMAL * 0x1p24f;
+
     // private static int dispcol = 0;
 
     public Tlda(List<Document> docs) throws IOException {
         this.indexer = Indexr.getInstance();
         this.documents = indexer.doIndex(docs);
-        this.V = indexer.getVocabularySize();
         this.S = indexer.getSubjectSize();
         this.P = indexer.getPredicateCount();
         this.O = indexer.getObjectCount();
     }
 
+    /**
+     * Worker view of a chain: shares the documents, assignments and
+     * document--frame counts with the master and keeps its own copy of the
+     * frame--SPO counts.
+     */
+    private Tlda(Tlda master) {
+        this.documents = master.documents;
+        this.indexer = master.indexer;
+        this.S = master.S;
+        this.P = master.P;
+        this.O = master.O;
+        this.K = master.K;
+        this.alpha = master.alpha;
+        this.beta = master.beta;
+        this.delta = master.delta;
+        this.gamma = master.gamma;
+        this.spo = master.spo;
+        this.nds = master.nds;
+        this.ndp = master.ndp;
+        this.ndo = master.ndo;
+        this.ndssum = master.ndssum;
+        this.ndpsum = master.ndpsum;
+        this.ndosum = master.ndosum;
+        this.LAYOUT = master.LAYOUT;
+        this.PRECISION = master.PRECISION;
+        this.JOINT = master.JOINT;
+        this.minibatch = master.minibatch;
+        this.ns = CountMatrix.create(S, K, LAYOUT);
+        this.np = CountMatrix.create(P, K, LAYOUT);
+        this.no = CountMatrix.create(O, K, LAYOUT);
+        this.nssum = new int[K];
+        this.npsum = new int[K];
+        this.nosum = new int[K];
+        this.rng = master.rng.split();
+    }
+
     /**
      * Initialisation: Must start with an assignment of observations to frames ?
      * Many alternatives are possible, I chose to perform random assignments
@@ -175,12 +310,15 @@ public class Tlda {
 //        nwsum = new int[K];
 //        ndsum = new int[M];
         
-        ns = new int[V][K];
-        np = new int[V][K];
-        no = new int[V][K];
-        nds = new int[M][K];
-        ndp = new int[M][K];
-        ndo = new int[M][K];
+        // only packed cells pay off for the short document rows
+        CountLayout docLayout = LAYOUT == CountLayout.PACKED ? LAYOUT : CountLayout.WORD_MAJOR;
+        // each role is sized by its own vocabulary
+        ns = CountMatrix.create(S, K, LAYOUT);
+        np = CountMatrix.create(P, K, LAYOUT);
+        no = CountMatrix.create(O, K, LAYOUT);
+        nds = CountMatrix.create(M, K, docLayout);
+        ndp = CountMatrix.create(M, K, docLayout);
+        ndo = CountMatrix.create(M, K, docLayout);
         nssum = new int[K];
         npsum = new int[K];
         nosum = new int[K];
@@ -192,19 +330,14 @@ public class Tlda {
         // initial state of the Markov chain.
 
 //        z = new int[M][];
-        s = new int[M][];
-        p = new int[M][];
-        o = new int[M][];
+        // every tuple contains 3 elements.
+        spo = new FrameAssignment(documents, 3, K);
         for (int m = 0; m < M; m++) {
-            // every tuple contains 3 elements.
-            int N = documents[m].length / 3;
+            int N = spo.tuples(m);
             
 //            z[m] = new int[N];
-            s[m] = new int[N];
-            p[m] = new int[N];
-            o[m] = new int[N];
             for (int n = 0; n < N; n++) {
-                int f = (int) (Math.random() * K);
+                int f = rng.nextInt(K);
                 // z[m][n] = frame;
                 // number of instances of word i assigned to frame j
 //                nw[documents[m][n]][frame]++;
@@ -214,17 +347,17 @@ public class Tlda {
 //                nwsum[frame]++;
                 
                 // assign frame to SPO
-                s[m][n] = f;
-                p[m][n] = f;
-                o[m][n] = f;
+                spo.set(0, m, n, f);
+                spo.set(1, m, n, f);
+                spo.set(2, m, n, f);
                 // number of instances of SPOs assigned to frame
-                ns[documents[m][n*3]][f]++;
-                np[documents[m][n*3+1]][f]++;
-                no[documents[m][n*3+2]][f]++;
+                ns.add(documents[m][n*3], f, 1);
+                np.add(documents[m][n*3+1], f, 1);
+                no.add(documents[m][n*3+2], f, 1);
                 // number of SPOs in document m assigned to frame f
-                nds[m][f]++;
-                ndp[m][f]++;
-                ndo[m][f]++;
+                nds.add(m, f, 1);
+                ndp.add(m, f, 1);
+                ndo.add(m, f, 1);
                 // total number of SPOs assigned to frame
                 nssum[f]++;
                 npsum[f]++;
@@ -248,180 +381,561 @@ public class Tlda {
      * @param alpha
      *            symmetric prior parameter on document--frame associations
      * @param beta
-     *            symmetric prior parameter on frame--term associations
+     *            symmetric prior parameter on frame--object associations
+     * @param delta
+     *            symmetric prior parameter on frame--predicate associations
+     * @param gamma
+     *            symmetric prior parameter on frame--subject associations
      */
-    private void gibbs(int K, double alpha, double beta, double delta, double gamma) {
+    public void gibbs(int K, double alpha, double beta, double delta, double gamma) {
         this.K = K;
         this.alpha = alpha;
         this.beta = beta;
         this.delta = delta;
         this.gamma = gamma;
+        lgRole = null;
 
         // init sampler statistics
         if (SAMPLE_LAG > 0) {
-            thetasum = new double[documents.length][K];
-            phisum = new double[K][V];
-            psisum = new double[K][V];
-            zetasum = new double[K][V];
+            thetasum = new SumMatrix(documents.length, K, PRECISION);
+            phisum = new SumMatrix(K, O, PRECISION);
+            psisum = new SumMatrix(K, S, PRECISION);
+            zetasum = new SumMatrix(K, P, PRECISION);
             numstats = 0;
         }
 
         // initial state of the Markov chain:
         initialState(K);
+        minibatch = MINIBATCH < 1 ? new Minibatch(documents.length, MINIBATCH,
+                BATCH_SCHEDULE, rng.split()) : null;
+        if (PARALLEL == ParallelMode.AD_LDA && THREADS > 1) {
+            pool = new WorkerPool(THREADS, documents);
+            workers = new Tlda[THREADS];
+            for (int t = 0; t < THREADS; t++)
+                workers[t] = new Tlda(this);
+        }
 
         System.out.println("Sampling " + ITERATIONS
                 + " iterations with burn-in of " + BURN_IN + " (B/S="
                 + THIN_INTERVAL + ").");
+        if (minibatch != null)
+            System.out.println("Sweeping " + minibatch.size() + " of "
+                    + documents.length + " documents per iteration ("
+                    + BATCH_SCHEDULE + ").");
 
-        for (int i = 0; i < ITERATIONS; i++) {
+        Convergence convergence = CHECK_INTERVAL > 0 ? new Convergence(CHECK_INTERVAL, TOLERANCE) : null;
+        int iterations = ITERATIONS, burnIn = BURN_IN, done = 0;
+        for (int i = 0; i < iterations; i++) {
             System.out.println("Iteration: " + i);
-            // the full conditional is the same, but the statistical matrix 
-            // used is different, so separate them into 3 function
-            
-            // sample frame for subjects
-            for (int m = 0; m < s.length; m++)
-                for (int n = 0; n < s[m].length; n++)
-                    s[m][n] = sampleSubjectFullConditional(m, n);
-            // sample frame for predicates
-            for (int m = 0; m < p.length; m++)
-                for (int n = 0; n < p[m].length; n++)
-                    p[m][n] = samplePredicateFullConditional(m, n);
-            // sample frame for objects
-            for (int m = 0; m < o.length; m++)
-                for (int n = 0; n < o[m].length; n++)
-                    o[m][n] = sampleObjectFullConditional(m, n);
+            if (minibatch != null)
+                minibatch.draw();
+            if (pool != null) {
+                long start = System.nanoTime();
+                long busy = adLdaSweep();
+                System.out.println(String.format("Speedup: %.2f on %d threads",
+                        (double) busy / (System.nanoTime() - start), THREADS));
+            } else {
+                sweep(0, documents.length);
+            }
+
+            done++;
 
             // get statistics after burn-in
-            if ((i > BURN_IN) && (SAMPLE_LAG > 0) && (i % SAMPLE_LAG == 0)) {
+            if ((i > burnIn) && (SAMPLE_LAG > 0) && (i % SAMPLE_LAG == 0)) {
                 updateParams();
             }
+
+            if (convergence != null) {
+                long changes = 0, tokens = 0;
+                if (pool != null)
+                    for (Tlda worker : workers)
+                        changes += worker.reassigned;
+                else
+                    changes = reassigned;
+                if (minibatch != null)
+                    for (int m : minibatch.documents())
+                        tokens += documents[m].length;
+                else
+                    for (int m = 0; m < documents.length; m++)
+                        tokens += documents[m].length;
+                convergence.sweep(changes, tokens);
+                if (convergence.due(i) && convergence.check(logLikelihood())) {
+                    // without statistics there is nothing left to sample
+                    if (SAMPLE_LAG <= 0) {
+                        System.out.println("Stationary after " + done + " iterations, stopping.");
+                        break;
+                    }
+                    if (i < burnIn) {
+                        System.out.println("Stationary after " + done + " iterations, ending burn-in.");
+                        iterations -= burnIn - i;
+                        burnIn = i;
+                    }
+                }
+            }
+        }
+        if (done < ITERATIONS)
+            System.out.println("Stopped after " + done + " of " + ITERATIONS + " iterations.");
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
         }
+        minibatch = null;
+    }
+
+    /**
+     * Resample the subjects, predicates and objects of the documents in
+     * [from, to) of the current iteration.
+     */
+    private void sweep(int from, int to) {
+        initDenominators();
+        reassigned = 0;
+
+        // the documents themselves, or their positions in the minibatch
+        int[] batch = minibatch != null ? minibatch.documents() : null;
+        if (batch != null) {
+            from = minibatch.lowerBound(from);
+            to = minibatch.lowerBound(to);
+        }
+
+        if (JOINT) {
+            for (int x = from; x < to; x++) {
+                int m = batch != null ? batch[x] : x;
+                for (int n = 0; n < spo.tuples(m); n++)
+                    reassigned += sampleTupleFullConditional(m, n);
+            }
+            return;
+        }
+
+        // the full conditional is the same, but the statistical matrix 
+        // used is different, so separate them into 3 function
+        
+        // sample frame for subjects
+        for (int x = from; x < to; x++) {
+            int m = batch != null ? batch[x] : x;
+            for (int n = 0; n < spo.tuples(m); n++) {
+                int f = sampleSubjectFullConditional(m, n);
+                if (f != spo.get(0, m, n))
+                    reassigned++;
+                spo.set(0, m, n, f);
+            }
+        }
+        // sample frame for predicates
+        for (int x = from; x < to; x++) {
+            int m = batch != null ? batch[x] : x;
+            for (int n = 0; n < spo.tuples(m); n++) {
+                int f = samplePredicateFullConditional(m, n);
+                if (f != spo.get(1, m, n))
+                    reassigned++;
+                spo.set(1, m, n, f);
+            }
+        }
+        // sample frame for objects
+        for (int x = from; x < to; x++) {
+            int m = batch != null ? batch[x] : x;
+            for (int n = 0; n < spo.tuples(m); n++) {
+                int f = sampleObjectFullConditional(m, n);
+                if (f != spo.get(2, m, n))
+                    reassigned++;
+                spo.set(2, m, n, f);
+            }
+        }
+    }
+
+    /**
+     * Approximate distributed LDA (Newman et al. 2009): every worker view
+     * samples its document range against a private copy of the frame--SPO
+     * counts, then the per-thread changes are summed back into this chain.
+     * 
+     * @return summed sampling time of all threads in nanoseconds
+     */
+    private long adLdaSweep() {
+        final int T = pool.threads;
+        pool.invoke(new WorkerPool.Job() {
+            @Override
+            public void run(int t, int from, int to) {
+                Tlda worker = workers[t];
+                worker.ns.copyFrom(ns);
+                worker.np.copyFrom(np);
+                worker.no.copyFrom(no);
+                System.arraycopy(nssum, 0, worker.nssum, 0, K);
+                System.arraycopy(npsum, 0, worker.npsum, 0, K);
+                System.arraycopy(nosum, 0, worker.nosum, 0, K);
+                worker.sweep(from, to);
+            }
+        });
+        long busy = pool.busy();
+
+        // n = n + sum_t (local_t - n), split by word
+        pool.invoke(new WorkerPool.Job() {
+            @Override
+            public void run(int t, int from, int to) {
+                for (int w = S * t / T; w < S * (t + 1) / T; w++) {
+                    for (int k = 0; k < K; k++) {
+                        int sum = 0;
+                        for (Tlda worker : workers)
+                            sum += worker.ns.get(w, k);
+                        ns.set(w, k, sum - (T - 1) * ns.get(w, k));
+                    }
+                }
+                for (int w = P * t / T; w < P * (t + 1) / T; w++) {
+                    for (int k = 0; k < K; k++) {
+                        int sum = 0;
+                        for (Tlda worker : workers)
+                            sum += worker.np.get(w, k);
+                        np.set(w, k, sum - (T - 1) * np.get(w, k));
+                    }
+                }
+                for (int w = O * t / T; w < O * (t + 1) / T; w++) {
+                    for (int k = 0; k < K; k++) {
+                        int sum = 0;
+                        for (Tlda worker : workers)
+                            sum += worker.no.get(w, k);
+                        no.set(w, k, sum - (T - 1) * no.get(w, k));
+                    }
+                }
+            }
+        });
+        for (int k = 0; k < K; k++) {
+            int sums = 0, sump = 0, sumo = 0;
+            for (Tlda worker : workers) {
+                sums += worker.nssum[k];
+                sump += worker.npsum[k];
+                sumo += worker.nosum[k];
+            }
+            nssum[k] = sums - (T - 1) * nssum[k];
+            npsum[k] = sump - (T - 1) * npsum[k];
+            nosum[k] = sumo - (T - 1) * nosum[k];
+        }
+        return busy;
     }
 
     private int sampleSubjectFullConditional(int m, int n) {
         // remove f_i from the count variables
-        int f = s[m][n];
-        ns[documents[m][n*3]][f]--; // mapping position
-        nds[m][f]--;
+        int f = spo.get(0, m, n);
+        ns.add(documents[m][n*3], f, -1); // mapping position
+        nds.add(m, f, -1);
         nssum[f]--;
         ndssum[m]--;
+        updateDenominators(f);
 
-        // do multinomial sampling via cumulative method:
-        double[] p = new double[K];
-        for (int k = 0; k < K; k++) {
-            p[k] = (no[documents[m][n*3+2]][k] + beta) / (nosum[k] + O * beta)
-                * (ns[documents[m][n*3]][k] + gamma) / (nosum[k] + S * gamma)
-                * (np[documents[m][n*3+1]][k] + delta) / (npsum[k] + P * delta)
-* (nds[m][k]+ndp[m][k]+ndo[m][k] + alpha) / (ndssum[m]+ndpsum[m]+ndosum[m] + K * alpha);
-        }
-        // cumulate multinomial parameters
-        for (int k = 1; k < p.length; k++) {
-            p[k] += p[k - 1];
-        }
-        // scaled sample because of unnormalised p[]
-        double u = Math.random() * p[K - 1];
-        for (f = 0; f < p.length; f++) {
-            if (u < p[f])
-                break;
-        }
+        f = sampleFrame(m, n);
 
         // add newly estimated z_i to count variables
-        ns[documents[m][n*3]][f]++; // mapping position
-        nds[m][f]++;
+        ns.add(documents[m][n*3], f, 1); // mapping position
+        nds.add(m, f, 1);
         nssum[f]++;
         ndssum[m]++;
+        updateDenominators(f);
 
         return f;
     }
     
     private int samplePredicateFullConditional(int m, int n) {
         // remove f_i from the count variables
-        int f = p[m][n];
-        np[documents[m][n*3+1]][f]--; // mapping position
-        ndp[m][f]--;
+        int f = spo.get(1, m, n);
+        np.add(documents[m][n*3+1], f, -1); // mapping position
+        ndp.add(m, f, -1);
         npsum[f]--;
         ndpsum[m]--;
+        updateDenominators(f);
 
-        // do multinomial sampling via cumulative method:
-        double[] p = new double[K];
-        for (int k = 0; k < K; k++) {
-            p[k] = (no[documents[m][n*3+2]][k] + beta) / (nosum[k] + O * beta)
-                * (ns[documents[m][n*3]][k] + gamma) / (nosum[k] + S * gamma)
-                * (np[documents[m][n*3+1]][k] + delta) / (npsum[k] + P * delta)
-* (nds[m][k]+ndp[m][k]+ndo[m][k] + alpha) / (ndssum[m]+ndpsum[m]+ndosum[m] + K * alpha);
-        }
-        // cumulate multinomial parameters
-        for (int k = 1; k < p.length; k++) {
-            p[k] += p[k - 1];
-        }
-        // scaled sample because of unnormalised p[]
-        double u = Math.random() * p[K - 1];
-        for (f = 0; f < p.length; f++) {
-            if (u < p[f])
-                break;
-        }
+        f = sampleFrame(m, n);
 
         // add newly estimated z_i to count variables
-        np[documents[m][n*3+1]][f]++; // mapping position
-        ndp[m][f]++;
+        np.add(documents[m][n*3+1], f, 1); // mapping position
+        ndp.add(m, f, 1);
         npsum[f]++;
         ndpsum[m]++;
+        updateDenominators(f);
 
         return f;
     }
     
     private int sampleObjectFullConditional(int m, int n) {
         // remove f_i from the count variables
-        int f = o[m][n];
-        no[documents[m][n*3+2]][f]--; // mapping position
-        ndo[m][f]--;
+        int f = spo.get(2, m, n);
+        no.add(documents[m][n*3+2], f, -1); // mapping position
+        ndo.add(m, f, -1);
         nosum[f]--;
         ndosum[m]--;
+        updateDenominators(f);
 
-        // do multinomial sampling via cumulative method:
-        double[] p = new double[K];
-        for (int k = 0; k < K; k++) {
-            p[k] = (no[documents[m][n*3+2]][k] + beta) / (nosum[k] + O * beta)
-                * (ns[documents[m][n*3]][k] + gamma) / (nosum[k] + S * gamma)
-                * (np[documents[m][n*3+1]][k] + delta) / (npsum[k] + P * delta)
-* (nds[m][k]+ndp[m][k]+ndo[m][k] + alpha) / (ndssum[m]+ndpsum[m]+ndosum[m] + K * alpha);
-        }
-        // cumulate multinomial parameters
-        for (int k = 1; k < p.length; k++) {
-            p[k] += p[k - 1];
-        }
-        // scaled sample because of unnormalised p[]
-        double u = Math.random() * p[K - 1];
-        for (f = 0; f < p.length; f++) {
-            if (u < p[f])
-                break;
-        }
+        f = sampleFrame(m, n);
 
         // add newly estimated z_i to count variables
-        no[documents[m][n*3+2]][f]++; // mapping position
-        ndo[m][f]++;
+        no.add(documents[m][n*3+2], f, 1); // mapping position
+        ndo.add(m, f, 1);
         nosum[f]++;
         ndosum[m]++;
+        updateDenominators(f);
 
         return f;
     }
 
+    /**
+     * Blocked step over the frames of the subject, predicate and object of
+     * tuple n of document m. With all three removed, each element has the
+     * same conditional p(k) ~ (c[k] + alpha) g(k), c the document counts and
+     * g the product of the three word factors, and three independent draws
+     * from it propose new frames for the block. The elements of the block
+     * still share the document term, which gives a frame taken by two or
+     * three of them (c + alpha)(c + 1 + alpha) or (c + alpha)(c + 1 + alpha)
+     * (c + 2 + alpha) instead of a power of (c + alpha); the proposal is
+     * accepted with the Metropolis-Hastings ratio of these corrections
+     * (see {@link #sharing(int, int, int, int)}).
+     * 
+     * @return the number of elements whose frame changed
+     */
+    private int sampleTupleFullConditional(int m, int n) {
+        int s = spo.get(0, m, n), p = spo.get(1, m, n), o = spo.get(2, m, n);
+
+        // remove f_i from the count variables
+        ns.add(documents[m][n*3], s, -1);
+        nds.add(m, s, -1);
+        nssum[s]--;
+        ndssum[m]--;
+        updateDenominators(s);
+        np.add(documents[m][n*3+1], p, -1);
+        ndp.add(m, p, -1);
+        npsum[p]--;
+        ndpsum[m]--;
+        updateDenominators(p);
+        no.add(documents[m][n*3+2], o, -1);
+        ndo.add(m, o, -1);
+        nosum[o]--;
+        ndosum[m]--;
+        updateDenominators(o);
+
+        int s1 = sampleFrame(m, n), p1 = redraw(), o1 = redraw();
+        if (rng.nextDouble() * sharing(m, s, p, o) < sharing(m, s1, p1, o1)) {
+            s = s1;
+            p = p1;
+            o = o1;
+        }
+        int changed = (s != spo.get(0, m, n) ? 1 : 0) + (p != spo.get(1, m, n) ? 1 : 0)
+                + (o != spo.get(2, m, n) ? 1 : 0);
+
+        // add newly estimated z_i to count variables
+        ns.add(documents[m][n*3], s, 1);
+        nds.add(m, s, 1);
+        nssum[s]++;
+        ndssum[m]++;
+        updateDenominators(s);
+        np.add(documents[m][n*3+1], p, 1);
+        ndp.add(m, p, 1);
+        npsum[p]++;
+        ndpsum[m]++;
+        updateDenominators(p);
+        no.add(documents[m][n*3+2], o, 1);
+        ndo.add(m, o, 1);
+        nosum[o]++;
+        ndosum[m]++;
+        updateDenominators(o);
+
+        spo.set(0, m, n, s);
+        spo.set(1, m, n, p);
+        spo.set(2, m, n, o);
+        return changed;
+    }
+
+    /**
+     * Ratio of the document term of the block to that of the proposal for
+     * frames s, p and o, on the counts without the block: 1 for three
+     * distinct frames, (c + 1 + alpha) / (c + alpha) for a frame shared by
+     * two elements and (c + 1 + alpha)(c + 2 + alpha) / (c + alpha)^2 for
+     * one shared by all three.
+     */
+    private double sharing(int m, int s, int p, int o) {
+        int k;
+        if (s == p || s == o)
+            k = s;
+        else if (p == o)
+            k = p;
+        else
+            return 1;
+        double c = nds.get(m, k) + ndp.get(m, k) + ndo.get(m, k) + alpha;
+        if (s == p && p == o)
+            return (c + 1) * (c + 2) / (c * c);
+        return (c + 1) / c;
+    }
+
+    /**
+     * Draw a frame for tuple n of document m from the full conditional of
+     * the current counts, which are the same for subjects, predicates and
+     * objects once the token itself has been removed.
+     */
+    private int sampleFrame(int m, int n) {
+        ns.readRow(documents[m][n*3], srow);
+        np.readRow(documents[m][n*3+1], prow);
+        no.readRow(documents[m][n*3+2], orow);
+
+        if (PRECISION == Precision.SINGLE) {
+            int f = sampleFrameSingle(m);
+            drawnSingle = f >= 0;
+            if (drawnSingle)
+                return f;
+        }
+        drawnSingle = false;
+
+        // do multinomial sampling via cumulative method; the document
+        // denominator is the same for all frames and left out
+        double total = 0;
+        for (int k = 0; k < K; k++) {
+            total += (orow[k] + beta) * invo[k]
+                * (srow[k] + gamma) * invs[k]
+                * (prow[k] + delta) * invp[k]
+                * (nds.get(m, k) + ndp.get(m, k) + ndo.get(m, k) + alpha);
+            pdist[k] = total;
+        }
+        // scaled sample because of unnormalised p[]
+        return Utils.search(pdist, K, rng.nextDouble() * total);
+    }
+
+    /**
+     * Another draw from the distribution of the last
+     * {@link #sampleFrame(int, int)}.
+     */
+    private int redraw() {
+        if (drawnSingle) {
+            float total = pdistf[K - 1];
+            float u = Math.min((float) (rng.nextDouble() * total), Math.nextAfter(total, 0));
+            return Utils.search(pdistf, K, u);
+        }
+        return Utils.search(pdist, K, rng.nextDouble() * pdist[K - 1]);
+    }
+
+    /**
+     * Float version of the draw in {@link #sampleFrame(int, int)},
+     * on the rows it has read.
+     * 
+     * @return the frame, or -1 if the total left the float range
+     */
+    private int sampleFrameSingle(int m) {
+        float a = (float) alpha, b = (float) beta, c = (float) gamma, d = (float) delta;
+        float total = 0;
+        for (int k = 0; k < K; k++) {
+            total += (orow[k] + b) * invof[k]
+                * (srow[k] + c) * invsf[k]
+                * (prow[k] + d) * invpf[k]
+                * (nds.get(m, k) + ndp.get(m, k) + ndo.get(m, k) + a);
+            pdistf[k] = total;
+        }
+        if (!(total >= UNDERFLOW_GUARD) || total == Float.POSITIVE_INFINITY)
+            return -1;
+        // rounding to float must not reach the end of the last frame
+        float u = Math.min((float) (rng.nextDouble() * total), Math.nextAfter(total, 0));
+        return Utils.search(pdistf, K, u);
+    }
+
+    /**
+     * Recompute the cached reciprocals of the frame--SPO denominators and
+     * size the scratch buffers of the full conditional.
+     */
+    private void initDenominators() {
+        if (pdist == null || pdist.length != K) {
+            pdist = new double[K];
+            srow = new int[K];
+            prow = new int[K];
+            orow = new int[K];
+            invs = new double[K];
+            invp = new double[K];
+            invo = new double[K];
+            pdistf = new float[K];
+            invsf = new float[K];
+            invpf = new float[K];
+            invof = new float[K];
+        }
+        for (int k = 0; k < K; k++)
+            updateDenominators(k);
+    }
+
+    /**
+     * Refresh the cached reciprocals of frame k.
+     */
+    private void updateDenominators(int k) {
+        invs[k] = 1.0 / (nssum[k] + S * gamma);
+        invp[k] = 1.0 / (npsum[k] + P * delta);
+        invo[k] = 1.0 / (nosum[k] + O * beta);
+        invsf[k] = (float) (S * gamma * invs[k]);
+        invpf[k] = (float) (P * delta * invp[k]);
+        invof[k] = (float) (O * beta * invo[k]);
+    }
+
+    /**
+     * Joint log-likelihood log p(w, z) of the tuples and the current frame
+     * assignments, with theta and the frame distributions integrated out.
+     * Only the non-zero counts are visited, each with one lookup in a table
+     * kept across calls; the document term merges the non-zero frames of
+     * the subject, predicate and object rows of each document.
+     */
+    public double logLikelihood() {
+        if (lgRole == null) {
+            double[] priors = {gamma, delta, beta};
+            int[] sizes = {S, P, O};
+            lgRole = new LogGammaTable[3];
+            lgRoleSum = new LogGammaTable[3];
+            for (int j = 0; j < 3; j++) {
+                lgRole[j] = new LogGammaTable(priors[j]);
+                lgRoleSum[j] = new LogGammaTable(sizes[j] * priors[j]);
+            }
+            lgDoc = new LogGammaTable(alpha);
+            lgDocSum = new LogGammaTable(K * alpha);
+        }
+        int[] frames = new int[K], counts = new int[K];
+        double ll = logLikelihood(ns, nssum, 0, frames, counts)
+                + logLikelihood(np, npsum, 1, frames, counts)
+                + logLikelihood(no, nosum, 2, frames, counts);
+
+        int[] row = new int[K], used = new int[K];
+        CountMatrix[] docRoles = {nds, ndp, ndo};
+        for (int m = 0; m < documents.length; m++) {
+            int size = 0;
+            for (CountMatrix docRole : docRoles) {
+                int n = docRole.readNonZero(m, frames, counts);
+                for (int x = 0; x < n; x++) {
+                    if (row[frames[x]] == 0)
+                        used[size++] = frames[x];
+                    row[frames[x]] += counts[x];
+                }
+            }
+            for (int x = 0; x < size; x++) {
+                ll += lgDoc.get(row[used[x]]);
+                row[used[x]] = 0;
+            }
+            ll -= lgDocSum.get(ndssum[m] + ndpsum[m] + ndosum[m]);
+        }
+        return ll;
+    }
+
+    private double logLikelihood(CountMatrix nw, int[] nwsum, int j, int[] frames, int[] counts) {
+        double ll = 0;
+        for (int w = 0; w < nw.rows; w++) {
+            int size = nw.readNonZero(w, frames, counts);
+            for (int x = 0; x < size; x++)
+                ll += lgRole[j].get(counts[x]);
+        }
+        for (int k = 0; k < K; k++)
+            ll -= lgRoleSum[j].get(nwsum[k]);
+        return ll;
+    }
+
     /**
      * Add to the statistics the values of theta and phi for the current state.
      */
     private void updateParams() {
         for (int m = 0; m < documents.length; m++) {
             for (int k = 0; k < K; k++) {
-                thetasum[m][k] += (nds[m][k]+ndp[m][k]+ndo[m][k] + alpha) 
-                        / (ndssum[m]+ndpsum[m]+ndosum[m] + K * alpha);
+                thetasum.add(m, k, (nds.get(m, k)+ndp.get(m, k)+ndo.get(m, k) + alpha) 
+                        / (ndssum[m]+ndpsum[m]+ndosum[m] + K * alpha));
             }
         }
         for (int k = 0; k < K; k++) {
-            for (int w = 0; w < V; w++) {
-                phisum[k][w] += (no[w][k] + beta) / (nosum[k] + O * beta);
-                zetasum[k][w] += (np[w][k] + delta) / (npsum[k] + P * delta);
-                psisum[k][w] += (ns[w][k] + gamma) / (nssum[k] + S * gamma);
-            }
+            for (int w = 0; w < O; w++)
+                phisum.add(k, w, (no.get(w, k) + beta) / (nosum[k] + O * beta));
+            for (int w = 0; w < P; w++)
+                zetasum.add(k, w, (np.get(w, k) + delta) / (npsum[k] + P * delta));
+            for (int w = 0; w < S; w++)
+                psisum.add(k, w, (ns.get(w, k) + gamma) / (nssum[k] + S * gamma));
         }
         numstats++;
     }
@@ -438,13 +952,14 @@ public class Tlda {
         if (SAMPLE_LAG > 0) {
             for (int m = 0; m < documents.length; m++) {
                 for (int k = 0; k < K; k++) {
-                    theta[m][k] = thetasum[m][k] / numstats;
+                    theta[m][k] = thetasum.get(m, k) / numstats;
                 }
             }
         } else {
             for (int m = 0; m < documents.length; m++) {
                 for (int k = 0; k < K; k++) {
-                    theta[m][k] = (nd[m][k] + alpha) / (ndsum[m] + K * alpha);
+                    theta[m][k] = (nds.get(m, k)+ndp.get(m, k)+ndo.get(m, k) + alpha)
+                            / (ndssum[m]+ndpsum[m]+ndosum[m] + K * alpha);
                 }
             }
         }
@@ -458,20 +973,21 @@ public class Tlda {
      * Retrieve estimated frame--word associations. If sample lag > 0 then the
      * mean value of all sampled statistics for phi[][] is taken.
      * 
-     * @return phi multinomial mixture of frame words (K x V)
+     * @return phi multinomial mixture of frame objects (K x O), indexed by
+     *         object id
      */
     public double[][] getPhi() {
-        double[][] phi = new double[K][V];
+        double[][] phi = new double[K][O];
         if (SAMPLE_LAG > 0) {
             for (int k = 0; k < K; k++) {
-                for (int w = 0; w < V; w++) {
-                    phi[k][w] = phisum[k][w] / numstats;
+                for (int w = 0; w < O; w++) {
+                    phi[k][w] = phisum.get(k, w) / numstats;
                 }
             }
         } else {
             for (int k = 0; k < K; k++) {
-                for (int w = 0; w < V; w++) {
-                    phi[k][w] = (nw[w][k] + beta) / (nwsum[k] + V * beta);
+                for (int w = 0; w < O; w++) {
+                    phi[k][w] = (no.get(w, k) + beta) / (nosum[k] + O * beta);
                 }
             }
         }
@@ -479,17 +995,17 @@ public class Tlda {
     }
     
     public double[][] getZeta() {
-        double[][] zeta = new double[K][V];
+        double[][] zeta = new double[K][P];
         if (SAMPLE_LAG > 0) {
             for (int k = 0; k < K; k++) {
-                for (int w = 0; w < V; w++) {
-                    zeta[k][w] = zetasum[k][w] / numstats;
+                for (int w = 0; w < P; w++) {
+                    zeta[k][w] = zetasum.get(k, w) / numstats;
                 }
             }
         } else {
             for (int k = 0; k < K; k++) {
-                for (int w = 0; w < V; w++) {
-                    zeta[k][w] = (np[w][k] + delta) / (npsum[k] + P * delta);
+                for (int w = 0; w < P; w++) {
+                    zeta[k][w] = (np.get(w, k) + delta) / (npsum[k] + P * delta);
                 }
             }
         }
@@ -497,17 +1013,17 @@ public class Tlda {
     }
     
     public double[][] getPsi() {
-        double[][] psi = new double[K][V];
+        double[][] psi = new double[K][S];
         if (SAMPLE_LAG > 0) {
             for (int k = 0; k < K; k++) {
-                for (int w = 0; w < V; w++) {
-                    psi[k][w] = psisum[k][w] / numstats;
+                for (int w = 0; w < S; w++) {
+                    psi[k][w] = psisum.get(k, w) / numstats;
                 }
             }
         } else {
             for (int k = 0; k < K; k++) {
-                for (int w = 0; w < V; w++) {
-                    psi[k][w] = (ns[w][k] + beta) / (nssum[k] + S * beta);
+                for (int w = 0; w < S; w++) {
+                    psi[k][w] = (ns.get(w, k) + gamma) / (nssum[k] + S * gamma);
                 }
             }
         }
@@ -534,6 +1050,118 @@ public class Tlda {
         this.SAMPLE_LAG = sampleLag;
     }
 
+    /**
+     * Configure the gibbs sampler
+     * 
+     * @param iterations
+     *            number of total iterations
+     * @param burnIn
+     *            number of burn-in iterations
+     * @param thinInterval
+     *            update statistics interval
+     * @param sampleLag
+     *            sample interval (-1 for just one sample at the end)
+     * @param seed
+     *            random seed; runs with the same seed and thread count give
+     *            the same chain
+     */
+    public void configure(int iterations, int burnIn, int thinInterval,
+            int sampleLag, long seed) {
+        configure(iterations, burnIn, thinInterval, sampleLag);
+        this.rng = new Xoroshiro128(seed);
+    }
+
+    /**
+     * Replace the random number generator, e.g. with another RandomSource
+     * implementation. Worker threads get streams split from it.
+     */
+    public void configureRandom(RandomSource rng) {
+        this.rng = rng;
+    }
+
+    /**
+     * Configure parallel sampling
+     * 
+     * @param mode
+     *            sweep scheduling; AD_LDA partitions the documents over the
+     *            threads, each sampling against its own copy of the
+     *            frame--SPO counts which are reduced after every sweep; other
+     *            modes are sampled serially
+     * @param threads
+     *            number of sampling threads
+     */
+    public void configureParallel(ParallelMode mode, int threads) {
+        this.PARALLEL = mode;
+        this.THREADS = threads;
+    }
+
+    /**
+     * Configure the storage of the count matrices
+     * 
+     * @param layout
+     *            see {@link MultiRoleTlda#configureLayout(CountLayout)};
+     *            PACKED also applies to the document--frame counts
+     */
+    public void configureLayout(CountLayout layout) {
+        this.LAYOUT = layout;
+    }
+
+    /**
+     * Configure blocked sampling of the tuples
+     * 
+     * @param joint
+     *            resample the subject, predicate and object of a tuple in one
+     *            Metropolis-Hastings step: their frames are proposed by three
+     *            draws from the conditional they share once all three are
+     *            removed, and the proposal is accepted with the ratio of the
+     *            document terms the three draws leave out. The elements keep
+     *            their own frames; one pass over the frames serves the whole
+     *            tuple instead of one per element
+     */
+    public void configureJoint(boolean joint) {
+        this.JOINT = joint;
+    }
+
+    /**
+     * Configure the floating-point precision of sampling
+     * 
+     * @param precision
+     *            SINGLE evaluates the full conditional in float, falling back
+     *            to double for tokens whose probabilities underflow, and
+     *            keeps the cumulative statistics in float
+     */
+    public void configurePrecision(Precision precision) {
+        this.PRECISION = precision;
+    }
+
+    /**
+     * Configure minibatch sweeps
+     * 
+     * @param fraction
+     *            share of the documents resampled per iteration, 1 for full
+     *            sweeps; BURN_IN and SAMPLE_LAG still count iterations
+     * @param schedule
+     *            see {@link MultiRoleTlda#configureMinibatch(double, MinibatchSchedule)}
+     */
+    public void configureMinibatch(double fraction, MinibatchSchedule schedule) {
+        this.MINIBATCH = fraction;
+        this.BATCH_SCHEDULE = schedule;
+    }
+
+    /**
+     * Monitor the chain and stop it early once it looks stationary
+     * 
+     * @param interval
+     *            iterations between evaluations of the joint log-likelihood,
+     *            0 for none
+     * @param tolerance
+     *            see {@link MultiRoleTlda#configureEarlyStop(int, double)}
+     */
+    public void configureEarlyStop(int interval, double tolerance) {
+        this.CHECK_INTERVAL = interval;
+        this.TOLERANCE = tolerance;
+    }
+
     public void printDistributions(PrintWriter pw) {
         double[][] theta = getTheta();
         double[][] phi = getPhi();
@@ -557,22 +1185,22 @@ public class Tlda {
             pw.append("***Frame " + k + "***\n");
             
             pw.append("**subject**\n");
-            for (int w = 0; w < V; w++) {
+            for (int w = 0; w < S; w++) {
                 if (psi[k][w] < hold)
                     pw.append("\t");
-                pw.append(indexer.index2Word(w) + ": " + psi[k][w] + "\n");
+                pw.append(indexer.index2Subject(w) + ": " + psi[k][w] + "\n");
             }
             pw.append("**predicate**\n");
-            for (int w = 0; w < V; w++) {
+            for (int w = 0; w < P; w++) {
                 if (zeta[k][w] < hold)
                     pw.append("\t");
-                pw.append(indexer.index2Word(w) + ": " + zeta[k][w] + "\n");
+                pw.append(indexer.index2Predicate(w) + ": " + zeta[k][w] + "\n");
             }
             pw.append("**object**\n");
-            for (int w = 0; w < V; w++) {
+            for (int w = 0; w < O; w++) {
                 if (phi[k][w] < hold)
                     pw.append("\t");
-                pw.append(indexer.index2Word(w) + ": " + phi[k][w] + "\n");
+                pw.append(indexer.index2Object(w) + ": " + phi[k][w] + "\n");
             }
             
             pw.append("\n\n");
@@ -604,6 +1232,7 @@ public class Tlda {
         int thinInterval = 10;
         int sampleLag = 10;
         lda.configure(iterations, burnIn, thinInterval, sampleLag);
+        lda.configureEarlyStop(10, 3e-5);
 
         int K = 4; // Frame number
         double alpha = 0.5; // good values
@@ -0,0 +1,263 @@
+package model;
+
+import static util.Utils.read;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import processor.MultiRoleIndexr;
+import util.RandomSource;
+import util.Utils;
+
+/**
+ * Initial frames for the tuples of a {@link MultiRoleTlda} chain that are
+ * better than uniformly random ones. Either a tuple is drawn from the
+ * frames of a previous model,
+ *
+ * <pre>
+ * p(k) ~ prod_i phi[i][k][w_i]
+ * </pre>
+ *
+ * with phi read back from {@link MultiRoleTlda#printFrameRoleDist}, or all
+ * tuples sharing a word of one role (usually the predicate) start in the
+ * same frame, found by clustering the words of that role by the words of
+ * the other roles they occur with.
+ *
+ * @author Yang Zhou
+ *
+ */
+class WarmStart {
+    private static final int DIMENSIONS = 32; // hashed co-occurrence profile, a power of two
+    private static final int ROUNDS = 5; // k-means iterations
+
+    final String source; // description for the log
+    private final int role; // clustered role, -1 when seeding from phi
+    private int K;
+
+    // phi of the previous model, [role][word] -> (frame, log phi - log floor)
+    private int[][][] frames;
+    private double[][][] weights;
+    private double[] logp = new double[0];
+
+    private int[] cluster; // frame of each word of the clustered role
+    private int[] nullIndex; // "null" in each role, -1 if none
+
+    private WarmStart(String source, int role) {
+        this.source = source;
+        this.role = role;
+    }
+
+    /**
+     * Seed from the frame--role distribution of a previous model. Words the
+     * file leaves out get the smallest probability it lists for their role;
+     * words and frames the current chain does not have are ignored.
+     */
+    static WarmStart fromModel(String path, MultiRoleIndexr indexer, String[] roleNames)
+            throws IOException {
+        int R = roleNames.length;
+        WarmStart warm = new WarmStart(path, -1);
+        List<int[]> keys = new ArrayList<int[]>(); // (role, word, frame)
+        List<Double> values = new ArrayList<Double>();
+        double[] floor = new double[R];
+        Arrays.fill(floor, 1);
+        int k = -1, j = -1;
+        for (String line : read(path).split("\n")) {
+            if (line.startsWith("=== Frame ")) {
+                k = Integer.parseInt(line.substring(10, line.lastIndexOf(" ===")).trim());
+            } else if (line.startsWith("=>Role type: ")) {
+                j = Arrays.asList(roleNames).indexOf(line.substring(13).trim());
+            } else if (j >= 0 && k >= 0 && line.lastIndexOf(": ") > 0) {
+                int split = line.lastIndexOf(": ");
+                int w = indexer.word2Index(j, line.substring(0, split));
+                double phi = Double.parseDouble(line.substring(split + 2));
+                floor[j] = Math.min(floor[j], phi);
+                if (w >= 0) {
+                    keys.add(new int[] {j, w, k});
+                    values.add(phi);
+                }
+            }
+        }
+
+        int[][] size = new int[R][];
+        for (int i = 0; i < R; i++)
+            size[i] = new int[indexer.getRoleCount(i)];
+        for (int[] key : keys)
+            size[key[0]][key[1]]++;
+        warm.frames = new int[R][][];
+        warm.weights = new double[R][][];
+        for (int i = 0; i < R; i++) {
+            warm.frames[i] = new int[size[i].length][];
+            warm.weights[i] = new double[size[i].length][];
+            for (int w = 0; w < size[i].length; w++) {
+                warm.frames[i][w] = new int[size[i][w]];
+                warm.weights[i][w] = new double[size[i][w]];
+                size[i][w] = 0;
+            }
+        }
+        for (int x = 0; x < keys.size(); x++) {
+            int[] key = keys.get(x);
+            int y = size[key[0]][key[1]]++;
+            warm.frames[key[0]][key[1]][y] = key[2];
+            warm.weights[key[0]][key[1]][y] = Math.log(values.get(x) / floor[key[0]]);
+        }
+        return warm;
+    }
+
+    /**
+     * Seed by clustering the words of a role into frames.
+     */
+    static WarmStart fromClusters(int role, String roleName) {
+        return new WarmStart("clusters of " + roleName, role);
+    }
+
+    /**
+     * Build what {@link #frame(int[], int, RandomSource)} needs for a chain
+     * of K frames.
+     */
+    void prepare(MultiRoleTlda lda, int K, MultiRoleIndexr indexer) {
+        this.K = K;
+        nullIndex = new int[lda.R];
+        for (int i = 0; i < lda.R; i++)
+            nullIndex[i] = indexer.getNullIndex(i);
+        if (role < 0)
+            logp = new double[K];
+        else
+            clusterRole(lda);
+    }
+
+    /**
+     * Spherical k-means over the words of the clustered role. Each word is
+     * described by the words of the other roles it occurs with, hashed into
+     * a short signed profile; the K most frequent words start the
+     * centroids. With no more words than frames every word gets its own.
+     */
+    private void clusterRole(MultiRoleTlda lda) {
+        int R = lda.R, V = lda.RC[role], D = DIMENSIONS;
+        double[][] profile = new double[V][D];
+        final int[] freq = new int[V];
+        for (int[] doc : lda.documents)
+            for (int n = 0; n < doc.length / R; n++) {
+                int w = doc[n*R+role];
+                if (w == nullIndex[role])
+                    continue;
+                freq[w]++;
+                for (int i = 0; i < R; i++) {
+                    if (i == role || doc[n*R+i] == nullIndex[i])
+                        continue;
+                    int h = hash(i, doc[n*R+i]);
+                    profile[w][(h >>> 1) & (D - 1)] += (h & 1) == 0 ? 1 : -1;
+                }
+            }
+        // words that only occur with nulls have no profile and are spread
+        // over the frames
+        boolean[] empty = new boolean[V];
+        for (int w = 0; w < V; w++)
+            empty[w] = !normalise(profile[w]);
+
+        cluster = new int[V];
+        for (int w = 0; w < V; w++)
+            cluster[w] = w % K;
+        if (V <= K)
+            return;
+        Integer[] byFreq = new Integer[V];
+        for (int w = 0; w < V; w++)
+            byFreq[w] = w;
+        Arrays.sort(byFreq, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return freq[b] - freq[a];
+            }
+        });
+        double[][] centroid = new double[K][];
+        for (int k = 0; k < K; k++)
+            centroid[k] = profile[byFreq[k]].clone();
+
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int w = 0; w < V; w++) {
+                if (empty[w])
+                    continue;
+                double best = Double.NEGATIVE_INFINITY;
+                for (int k = 0; k < K; k++) {
+                    double dot = 0;
+                    for (int d = 0; d < D; d++)
+                        dot += profile[w][d] * centroid[k][d];
+                    if (dot > best) {
+                        best = dot;
+                        cluster[w] = k;
+                    }
+                }
+            }
+            // an empty cluster keeps its old centroid
+            double[][] sum = new double[K][D];
+            boolean[] used = new boolean[K];
+            for (int w = 0; w < V; w++) {
+                used[cluster[w]] = true;
+                for (int d = 0; d < D; d++)
+                    sum[cluster[w]][d] += freq[w] * profile[w][d];
+            }
+            for (int k = 0; k < K; k++)
+                if (used[k]) {
+                    normalise(sum[k]);
+                    centroid[k] = sum[k];
+                }
+        }
+    }
+
+    private static int hash(int role, int word) {
+        int h = role * 0x9E3779B9 + word;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ h >>> 16;
+    }
+
+    /**
+     * Scale x to unit length.
+     * 
+     * @return false if x is zero
+     */
+    private static boolean normalise(double[] x) {
+        double norm = 0;
+        for (double v : x)
+            norm += v * v;
+        if (norm == 0)
+            return false;
+        norm = Math.sqrt(norm);
+        for (int d = 0; d < x.length; d++)
+            x[d] /= norm;
+        return true;
+    }
+
+    /**
+     * Initial frame of tuple n of doc.
+     */
+    int frame(int[] doc, int n, RandomSource rng) {
+        int R = nullIndex.length;
+        if (role >= 0) {
+            int w = doc[n*R+role];
+            return w != nullIndex[role] ? cluster[w] : rng.nextInt(K);
+        }
+        Arrays.fill(logp, 0);
+        for (int i = 0; i < R; i++) {
+            int w = doc[n*R+i];
+            if (w == nullIndex[i])
+                continue;
+            for (int x = 0; x < frames[i][w].length; x++)
+                if (frames[i][w][x] < K)
+                    logp[frames[i][w][x]] += weights[i][w][x];
+        }
+        double max = 0;
+        for (int k = 0; k < K; k++)
+            max = Math.max(max, logp[k]);
+        double total = 0;
+        for (int k = 0; k < K; k++) {
+            total += Math.exp(logp[k] - max);
+            logp[k] = total;
+        }
+        return Utils.search(logp, K, rng.nextDouble() * total);
+    }
+}
@@ -0,0 +1,93 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fixed pool of sampling threads. The corpus is cut into one contiguous
+ * document range per thread, balanced by the number of tokens.
+ * 
+ * @author Yang Zhou
+ * 
+ */
+class WorkerPool {
+    /**
+     * Work done by one thread on its document range [from, to).
+     */
+    interface Job {
+        void run(int worker, int from, int to);
+    }
+
+    final int threads;
+    private final int[] bounds; // worker t owns documents [bounds[t], bounds[t+1])
+    private final ExecutorService executor;
+    private long busy;
+
+    WorkerPool(int threads, int[][] documents) {
+        this.threads = threads;
+        this.bounds = partition(documents, threads);
+        this.executor = Executors.newFixedThreadPool(threads);
+    }
+
+    static int[] partition(int[][] documents, int parts) {
+        long total = 0;
+        for (int[] doc : documents)
+            total += doc.length;
+        int[] bounds = new int[parts + 1];
+        long seen = 0;
+        int t = 1;
+        for (int m = 0; m < documents.length && t < parts; m++) {
+            seen += documents[m].length;
+            while (t < parts && seen * parts >= total * t)
+                bounds[t++] = m + 1;
+        }
+        while (t <= parts)
+            bounds[t++] = documents.length;
+        return bounds;
+    }
+
+    /**
+     * Run the job on every thread and wait for all of them.
+     */
+    void invoke(final Job job) {
+        List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+        for (int t = 0; t < threads; t++) {
+            final int worker = t;
+            tasks.add(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    long start = System.nanoTime();
+                    job.run(worker, bounds[worker], bounds[worker + 1]);
+                    return System.nanoTime() - start;
+                }
+            });
+        }
+        busy = 0;
+        try {
+            for (Future<Long> f : executor.invokeAll(tasks))
+                busy += f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Summed thread busy time of the last invoke() in nanoseconds, i.e. what
+     * the job would have taken on a single thread.
+     */
+    long busy() {
+        return busy;
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+}
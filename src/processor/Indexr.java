@@ -32,6 +32,12 @@ public class Indexr {
      * Mapping int back to word
      */
     private Map<Integer, String> int2Word;
+    /**
+     * Mapping the dense per-role ids the documents hold back to words
+     */
+    private List<String> int2Subject;
+    private List<String> int2Predicate;
+    private List<String> int2Object;
     /**
      * Mapping
      */
@@ -52,6 +58,9 @@ public class Indexr {
         predicate2Int =new HashMap<String, Integer>();
         object2Int =new HashMap<String, Integer>();
         int2Word = new HashMap<Integer, String>();
+        int2Subject = new ArrayList<String>();
+        int2Predicate = new ArrayList<String>();
+        int2Object = new ArrayList<String>();
         int2Role = new HashMap<Integer, SemanticRoleType>();
     }
 
@@ -59,17 +68,40 @@ public class Indexr {
         return ConventerHolder.instance;
     }
 
+    /**
+     * Index a corpus of (subject, predicate, object) tuples.
+     * 
+     * @return for every document the ids of its subjects, predicates and
+     *         objects, interleaved; each role has its own dense ids, which
+     *         {@link #index2Subject(int)}, {@link #index2Predicate(int)} and
+     *         {@link #index2Object(int)} map back to words
+     */
     public int[][] doIndex(List<Document> corpus) throws IOException {
         // map word to int
         int[][] indexedCorpus = new int[corpus.size()][];
         tupleCount = 0;
 
+        // the documents index into the per-role ids, so every corpus starts
+        // a new index
+        word2Int.clear();
+        int2Word.clear();
+        subject2Int.clear();
+        predicate2Int.clear();
+        object2Int.clear();
+        int2Subject.clear();
+        int2Predicate.clear();
+        int2Object.clear();
+
         // deal with tuple without specific semantic role.
         word2Int.put(nullString, 0);
+        int2Word.put(0, nullString);
         subject2Int.put(nullString, 0);
         predicate2Int.put(nullString, 0);
         object2Int.put(nullString, 0);
-        int index=0,sindex=0, pindex=0, oindex=0;
+        int2Subject.add(nullString);
+        int2Predicate.add(nullString);
+        int2Object.add(nullString);
+        int index=1,sindex=1, pindex=1, oindex=1;
         for (int d = 0; d < corpus.size(); d++) {
             Document doc = corpus.get(d);
             // Separate file into tuples
@@ -95,22 +127,28 @@ public class Indexr {
                         word2Int.put(k, index); int2Word.put(index, k);
                         index++;
                     }
+                    int mappedInteger = -1;
                     if (pos == 0) {
                         if (!subject2Int.containsKey(k)) {
                             subject2Int.put(k, sindex++);
+                            int2Subject.add(k);
                         }
+                        mappedInteger = subject2Int.get(k);
                     } else if (pos == 1) {
                         if (!predicate2Int.containsKey(k)) {
                             predicate2Int.put(k, pindex++);
+                            int2Predicate.add(k);
                         }
+                        mappedInteger = predicate2Int.get(k);
                     } else if (pos == 2) {
                         if (!object2Int.containsKey(k)) {
                             object2Int.put(k, oindex++);
+                            int2Object.add(k);
                         }
+                        mappedInteger = object2Int.get(k);
                     } else
                         assert false;
                     
-                    int mappedInteger = word2Int.get(k);
                     indexBuf.add(mappedInteger);
                     pos++;
                 }
@@ -183,6 +221,18 @@ public class Indexr {
         return int2Word.get(index);
     }
 
+    public String index2Subject(int index) {
+        return int2Subject.get(index);
+    }
+
+    public String index2Predicate(int index) {
+        return int2Predicate.get(index);
+    }
+
+    public String index2Object(int index) {
+        return int2Object.get(index);
+    }
+
     public int getWordCount() {
         return int2Word.keySet().size();
     }
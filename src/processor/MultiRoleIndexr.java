@@ -4,6 +4,8 @@ import static util.Utils.write;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -29,10 +31,18 @@ public class MultiRoleIndexr {
      * Mapping int back to word
      */
     private Map<Integer, String> int2Word;
+    /**
+     * Mapping the dense per-role ids the documents hold back to words
+     */
+    private List<String>[] int2RoleWord;
     /**
      * Mapping
      */
     private Map<Integer, SemanticRoleType> int2Role;
+    /**
+     * Lengths of the runs of identical tuples of each document
+     */
+    private int[][] tupleRuns;
 //    private int index = 0;
     private int tupleCount;
 //    private int subjectCount;
@@ -46,33 +56,61 @@ public class MultiRoleIndexr {
         
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Index a corpus of tuples with roleNum tab-separated roles per line.
+     * 
+     * @return for every document the ids of its tuples' role words,
+     *         interleaved by role; each role has its own dense ids from 0 to
+     *         {@link #getRoleCount(int)} - 1, which
+     *         {@link #index2Word(int, int)} maps back to words
+     */
     public int[][] doIndex(List<Document> corpus, int roleNum) throws IOException {
+        return doIndex(corpus, roleNum, false);
+    }
+
+    /**
+     * Index a corpus of tuples with roleNum tab-separated roles per line.
+     * 
+     * @param collapse
+     *            if true, the repeats of a tuple within a document are moved
+     *            next to its first occurrence, and the lengths of these runs
+     *            are kept for {@link #getTupleRuns()}
+     * @return for every document the ids of its tuples' role words,
+     *         interleaved by role
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public int[][] doIndex(List<Document> corpus, int roleNum, boolean collapse) throws IOException {
         // map word to int
         int[][] indexedCorpus = new int[corpus.size()][];
+        tupleRuns = collapse ? new int[corpus.size()][] : null;
         tupleCount = 0;
 
         // deal with tuple without specific semantic role.
         word2Int.put(nullString, 0);
+        int2Word.put(0, nullString);
         
         role2Int = new Map[roleNum];
+        int2RoleWord = new List[roleNum];
         
-        for (int i = 0; i < roleNum; i++)
+        for (int i = 0; i < roleNum; i++) {
             role2Int[i] = new HashMap<String, Integer>();
+            int2RoleWord[i] = new ArrayList<String>();
+        }
         int[] roleIndex = new int[roleNum];
         
-        int index=0;
+        int index=1;
         for (int d = 0; d < corpus.size(); d++) {
             Document doc = corpus.get(d);
             // Separate file into tuples
             StringTokenizer st = new StringTokenizer(doc.getContent(), "\n");
-            tupleCount += st.countTokens();
-            int[] indexBuf = new int[roleNum*tupleCount];
+            int docTuples = st.countTokens();
+            tupleCount += docTuples;
+            int[] indexBuf = new int[roleNum*docTuples];
             for (int lineno = 0;st.hasMoreTokens();lineno++) {
                 String line = st.nextToken();
                 // Separate a tuple into SVO
                 StringTokenizer st2 = new StringTokenizer(line, "\t");
-                if (st2.countTokens() != 3) {
+                if (st2.countTokens() != roleNum) {
                     System.err.println("Input data format error. Please check!");
                     System.exit(-1);
                 }
@@ -85,17 +123,62 @@ public class MultiRoleIndexr {
                         index++;
                     }
 
-                    if (!role2Int[pos].containsKey(k))
-                        role2Int[pos].put(k, ++roleIndex[pos]);
+                    if (!role2Int[pos].containsKey(k)) {
+                        role2Int[pos].put(k, roleIndex[pos]++);
+                        int2RoleWord[pos].add(k);
+                    }
 
-                    indexBuf[lineno*roleNum + pos] = word2Int.get(k);
+                    indexBuf[lineno*roleNum + pos] = role2Int[pos].get(k);
                 }
             }
+            if (collapse)
+                indexBuf = groupRepeats(indexBuf, roleNum, d);
             indexedCorpus[d] = indexBuf;
         }
         return indexedCorpus;
     }
 
+    /**
+     * Reorder the tuples of document d so that identical tuples are adjacent,
+     * in order of first occurrence, and record the run lengths.
+     */
+    private int[] groupRepeats(int[] tuples, int roleNum, int d) {
+        int N = tuples.length / roleNum;
+        Map<String, Integer> groupOf = new HashMap<String, Integer>();
+        List<Integer> first = new ArrayList<Integer>(); // first tuple of each group
+        List<Integer> size = new ArrayList<Integer>();
+        for (int n = 0; n < N; n++) {
+            String key = Arrays.toString(Arrays.copyOfRange(tuples, n*roleNum, (n+1)*roleNum));
+            Integer g = groupOf.get(key);
+            if (g == null) {
+                g = first.size();
+                groupOf.put(key, g);
+                first.add(n);
+                size.add(0);
+            }
+            size.set(g, size.get(g) + 1);
+        }
+
+        int[] grouped = new int[tuples.length];
+        int[] runs = new int[first.size()];
+        int pos = 0;
+        for (int g = 0; g < runs.length; g++) {
+            runs[g] = size.get(g);
+            for (int c = 0; c < runs[g]; c++, pos++)
+                System.arraycopy(tuples, first.get(g)*roleNum, grouped, pos*roleNum, roleNum);
+        }
+        tupleRuns[d] = runs;
+        return grouped;
+    }
+
+    /**
+     * @return for every document the lengths of its runs of identical tuples
+     *         in order, or null if the corpus was not indexed with collapse
+     */
+    public int[][] getTupleRuns() {
+        return tupleRuns;
+    }
+
     public boolean isNull(String word) {
         return word.compareTo(nullString) == 0;
     }
@@ -128,6 +211,15 @@ public class MultiRoleIndexr {
         return word2Int.get(nullString);
     }
 
+    /**
+     * @return the id of the literal "null" among the words of role i, or -1
+     *         if no tuple leaves that role empty
+     */
+    public int getNullIndex(int i) {
+        Integer idx = role2Int[i].get(nullString);
+        return idx == null ? -1 : idx;
+    }
+
     public int getVocabularySize() {
         return int2Word.size();
     }
@@ -140,10 +232,23 @@ public class MultiRoleIndexr {
         return word2Int.get(word);
     }
 
+    /**
+     * @return the dense id of word among the words of role i, or -1 if no
+     *         tuple has it in that role
+     */
+    public int word2Index(int role, String word) {
+        Integer idx = role2Int[role].get(word);
+        return idx == null ? -1 : idx;
+    }
+
     public String index2Word(int index) {
         return int2Word.get(index);
     }
 
+    public String index2Word(int role, int index) {
+        return int2RoleWord[role].get(index);
+    }
+
     public int getWordCount() {
         return int2Word.keySet().size();
     }
@@ -0,0 +1,225 @@
+package test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import model.MultiRoleTlda;
+import model.Tlda;
+import structure.Document;
+import flag.CountLayout;
+import flag.ParallelMode;
+import flag.Precision;
+import flag.SamplerType;
+
+/**
+ * Per-token cost, count memory and heap allocation of the MultiRoleTlda
+ * samplers on a synthetic tuple corpus with Zipfian role words. Allocation is
+ * the difference between the timed chain and a two-iteration chain, so it
+ * only covers the extra sweeps. The per-token cost of the Tlda sampler, per
+ * element and joint, follows on the same corpus with three roles.
+ *
+ * Usage: SamplerBenchmark [K] [iterations] [R...]
+ * (run with a large heap, e.g. -Xmx4g; -Dlayouts=WORD_MAJOR,PACKED selects
+ * the count layouts to compare, -Dprecisions=DOUBLE,SINGLE the floating-point
+ * precisions, -Dnulls=0.3 fills that share of the last role with "null" and
+ * leaves those slots out of the model, -Drepeats=0.5 makes that share of the
+ * tuples repeat an earlier tuple of their document, -Dcollapse=true
+ * samples such repeats as runs, leaving out ALIAS, and -Dskip=3 skips
+ * tuples that kept their frames for that many sweeps with decreasing
+ * probability; -Dthreads=4 runs the Tlda chains with AD_LDA on that many
+ * threads)
+ */
+public class SamplerBenchmark {
+    private static final int DOCUMENTS = 200;
+    private static final int TUPLES = 50; // tuples per document
+    private static final int WORDS = 2000; // distinct words per role
+    private static final double NULLS = Double.parseDouble(System.getProperty("nulls", "0"));
+    private static final double REPEATS = Double.parseDouble(System.getProperty("repeats", "0"));
+    private static final boolean COLLAPSE = Boolean.getBoolean("collapse");
+    private static final int SKIP = Integer.getInteger("skip", 0);
+    private static final int THREADS = Integer.getInteger("threads", 1);
+
+    public static void main(String[] args) throws IOException {
+        int K = args.length > 0 ? Integer.parseInt(args[0]) : 800;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int[] roles = {3, 6};
+        if (args.length > 2) {
+            roles = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++)
+                roles[i - 2] = Integer.parseInt(args[i]);
+        }
+
+        String[] layouts = System.getProperty("layouts", "WORD_MAJOR").split(",");
+        String[] precisions = System.getProperty("precisions", "DOUBLE").split(",");
+
+        for (int R : roles) {
+            List<Document> docs = corpus(R, 42);
+            for (String layout : layouts) {
+                for (String precision : precisions) {
+                    for (SamplerType type : SamplerType.values()) {
+                        if (COLLAPSE && type == SamplerType.ALIAS)
+                            continue;
+                        long[] memory = new long[2];
+                        double ns = nsPerToken(docs, R, K, iterations, type,
+                                CountLayout.valueOf(layout), Precision.valueOf(precision), memory);
+                        System.out.println(String.format(
+                                "R=%d K=%d %-10s %-6s %-6s %10.1f ns/token %8.1f MB counts %8.1f B/token",
+                                R, K, layout, precision, type, ns, memory[0] / 1e6,
+                                (double) memory[1] / ((long) (iterations - 2) * DOCUMENTS * TUPLES * R)));
+                    }
+                }
+            }
+        }
+
+        List<Document> docs = corpus(3, 42);
+        for (String layout : layouts) {
+            for (String precision : precisions) {
+                for (boolean joint : new boolean[] {false, true}) {
+                    double ns = tldaNsPerToken(docs, K, iterations, CountLayout.valueOf(layout),
+                            Precision.valueOf(precision), joint);
+                    System.out.println(String.format(
+                            "Tlda K=%d %-10s %-6s %-7s %10.1f ns/token (%d threads)",
+                            K, layout, precision, joint ? "JOINT" : "ELEMENT", ns, THREADS));
+                }
+            }
+        }
+    }
+
+    /**
+     * Average wall time per role token of a chain, after one warm-up chain.
+     * The final size of the count matrices is stored in memory[0], the bytes
+     * allocated by the extra iterations of the chain in memory[1].
+     */
+    static double nsPerToken(List<Document> docs, int R, int K, int iterations,
+            SamplerType type, CountLayout layout, Precision precision, long[] memory)
+            throws IOException {
+        String[] roleNames = new String[R];
+        for (int j = 0; j < R; j++)
+            roleNames[j] = "role" + j;
+        double[] betas = new double[R];
+        Arrays.fill(betas, 0.01);
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        try {
+            MultiRoleTlda warmup = new MultiRoleTlda(docs, R, roleNames, COLLAPSE);
+            warmup.configure(2, 2, 1, -1, type);
+            warmup.configureLayout(layout);
+            warmup.configurePrecision(precision);
+            warmup.configureNullRoles(NULLS > 0);
+            warmup.gibbs(K, 50.0 / K, betas);
+
+            MultiRoleTlda baseline = new MultiRoleTlda(docs, R, roleNames, COLLAPSE);
+            baseline.configure(2, 2, 1, -1, type);
+            baseline.configureLayout(layout);
+            baseline.configurePrecision(precision);
+            baseline.configureNullRoles(NULLS > 0);
+            long allocated = allocatedBytes();
+            baseline.gibbs(K, 50.0 / K, betas);
+            long baselineAllocated = allocatedBytes() - allocated;
+
+            MultiRoleTlda lda = new MultiRoleTlda(docs, R, roleNames, COLLAPSE);
+            lda.configure(iterations, iterations, 1, -1, type);
+            lda.configureLayout(layout);
+            lda.configurePrecision(precision);
+            lda.configureNullRoles(NULLS > 0);
+            lda.configureSkipStable(SKIP, 0.1);
+            allocated = allocatedBytes();
+            long start = System.nanoTime();
+            lda.gibbs(K, 50.0 / K, betas);
+            long elapsed = System.nanoTime() - start;
+            memory[0] = lda.countMemory();
+            memory[1] = allocatedBytes() - allocated - baselineAllocated;
+            return (double) elapsed / ((long) iterations * DOCUMENTS * TUPLES * R);
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    /**
+     * Average wall time per element of a Tlda chain, after one warm-up chain.
+     */
+    static double tldaNsPerToken(List<Document> docs, int K, int iterations,
+            CountLayout layout, Precision precision, boolean joint) throws IOException {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        try {
+            Tlda warmup = new Tlda(docs);
+            warmup.configure(2, 2, 1, -1, 42);
+            warmup.configureParallel(ParallelMode.AD_LDA, THREADS);
+            warmup.configureLayout(layout);
+            warmup.configurePrecision(precision);
+            warmup.configureJoint(joint);
+            warmup.gibbs(K, 50.0 / K, 0.01, 0.01, 0.01);
+
+            Tlda lda = new Tlda(docs);
+            lda.configure(iterations, iterations, 1, -1, 42);
+            lda.configureParallel(ParallelMode.AD_LDA, THREADS);
+            lda.configureLayout(layout);
+            lda.configurePrecision(precision);
+            lda.configureJoint(joint);
+            long start = System.nanoTime();
+            lda.gibbs(K, 50.0 / K, 0.01, 0.01, 0.01);
+            long elapsed = System.nanoTime() - start;
+            return (double) elapsed / ((long) iterations * DOCUMENTS * TUPLES * 3);
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    /**
+     * Bytes allocated so far by the current thread, where the JVM reports it.
+     */
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        return 0;
+    }
+
+    static List<Document> corpus(int R, long seed) {
+        Random rnd = new Random(seed);
+        List<Document> docs = new ArrayList<Document>();
+        for (int d = 0; d < DOCUMENTS; d++) {
+            StringBuilder sb = new StringBuilder();
+            List<String> tuples = new ArrayList<String>();
+            for (int t = 0; t < TUPLES; t++) {
+                if (REPEATS > 0 && t > 0 && rnd.nextDouble() < REPEATS) {
+                    String tuple = tuples.get(rnd.nextInt(t));
+                    tuples.add(tuple);
+                    sb.append(tuple);
+                    continue;
+                }
+                int from = sb.length();
+                for (int j = 0; j < R; j++) {
+                    // log-uniform rank, roughly Zipfian
+                    int rank = (int) Math.pow(WORDS, rnd.nextDouble()) - 1;
+                    sb.append(j == 0 ? "" : "\t");
+                    if (NULLS > 0 && j == R - 1 && rnd.nextDouble() < NULLS)
+                        sb.append("null");
+                    else
+                        sb.append("w").append(j).append('_').append(rank);
+                }
+                sb.append('\n');
+                tuples.add(sb.substring(from));
+            }
+            docs.add(new Document("doc" + d, sb.toString()));
+        }
+        return docs;
+    }
+}
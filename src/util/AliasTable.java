@@ -0,0 +1,82 @@
+package util;
+
+/**
+ * Walker alias table built with Vose's method: O(n) construction and O(1)
+ * sampling from a fixed discrete distribution over [0, n).
+ * 
+ * @author Yang Zhou
+ * 
+ */
+public class AliasTable {
+    private double[] prob;
+    private int[] alias;
+    private int[] small;
+    private int[] large;
+    private int size;
+
+    public AliasTable(int capacity) {
+        allocate(Math.max(capacity, 1));
+    }
+
+    private void allocate(int capacity) {
+        prob = new double[capacity];
+        alias = new int[capacity];
+        small = new int[capacity];
+        large = new int[capacity];
+    }
+
+    /**
+     * (Re)build the table for the unnormalised weights[0..n).
+     */
+    public void build(double[] weights, int n) {
+        if (n > prob.length)
+            allocate(n);
+        size = n;
+        double sum = 0;
+        for (int i = 0; i < n; i++)
+            sum += weights[i];
+
+        int ns = 0, nl = 0;
+        for (int i = 0; i < n; i++) {
+            prob[i] = weights[i] * n / sum;
+            alias[i] = i;
+            if (prob[i] < 1)
+                small[ns++] = i;
+            else
+                large[nl++] = i;
+        }
+        while (ns > 0 && nl > 0) {
+            int l = small[--ns];
+            int g = large[--nl];
+            alias[l] = g;
+            prob[g] = prob[g] + prob[l] - 1;
+            if (prob[g] < 1)
+                small[ns++] = g;
+            else
+                large[nl++] = g;
+        }
+        // whatever is left over is 1 up to rounding
+        while (nl > 0)
+            prob[large[--nl]] = 1;
+        while (ns > 0)
+            prob[small[--ns]] = 1;
+    }
+
+    /**
+     * Draw an index.
+     * 
+     * @param u
+     *            uniform random number in [0, 1)
+     */
+    public int sample(double u) {
+        double x = u * size;
+        int i = (int) x;
+        if (i >= size)
+            i = size - 1;
+        return x - i < prob[i] ? i : alias[i];
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,79 @@
+package util;
+
+/**
+ * Binary indexed tree over n non-negative weights: O(log n) update of one
+ * weight and O(log n) search of the index at which the running sum exceeds a
+ * given value, for drawing from a distribution that changes a few entries at
+ * a time.
+ * 
+ * @author Yang Zhou
+ * 
+ */
+public class FenwickTree {
+    private final double[] tree; // 1-based partial sums
+    private final double[] weights;
+    private final int n;
+    private final int top; // highest power of two <= n
+
+    public FenwickTree(int n) {
+        this.n = n;
+        this.tree = new double[n + 1];
+        this.weights = new double[n];
+        this.top = Integer.highestOneBit(Math.max(n, 1));
+    }
+
+    /**
+     * Rebuild the tree from weights[0..n) in O(n), which also clears any
+     * rounding drift of the incremental updates.
+     */
+    public void build(double[] w) {
+        System.arraycopy(w, 0, weights, 0, n);
+        System.arraycopy(w, 0, tree, 1, n);
+        tree[0] = 0;
+        for (int i = 1; i <= n; i++) {
+            int parent = i + (i & -i);
+            if (parent <= n)
+                tree[parent] += tree[i];
+        }
+    }
+
+    /**
+     * Change weight i to w.
+     */
+    public void set(int i, double w) {
+        double delta = w - weights[i];
+        weights[i] = w;
+        for (int x = i + 1; x <= n; x += x & -x)
+            tree[x] += delta;
+    }
+
+    public double get(int i) {
+        return weights[i];
+    }
+
+    /**
+     * Sum of all weights.
+     */
+    public double total() {
+        double sum = 0;
+        for (int x = n; x > 0; x -= x & -x)
+            sum += tree[x];
+        return sum;
+    }
+
+    /**
+     * Smallest index i such that weights[0..i] sum to more than u, clamped to
+     * n - 1 for u at or above the total.
+     */
+    public int search(double u) {
+        int pos = 0;
+        for (int step = top; step > 0; step >>= 1) {
+            int next = pos + step;
+            if (next <= n && tree[next] <= u) {
+                pos = next;
+                u -= tree[next];
+            }
+        }
+        return Math.min(pos, n - 1);
+    }
+}
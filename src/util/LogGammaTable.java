@@ -0,0 +1,35 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * log Gamma(c + a) - log Gamma(a) for integer counts c >= 0 and a fixed
+ * a > 0, built from the recurrence Gamma(x + 1) = x Gamma(x). The table grows
+ * to the largest count asked for, so the log-likelihood of a count matrix
+ * costs one lookup per non-zero count.
+ * 
+ * @author Yang Zhou
+ * 
+ */
+public class LogGammaTable {
+    private final double a;
+    private double[] table = new double[] {0};
+    private int size = 1;
+
+    public LogGammaTable(double a) {
+        this.a = a;
+    }
+
+    public double get(int c) {
+        if (c >= size)
+            grow(c);
+        return table[c];
+    }
+
+    private void grow(int c) {
+        if (c >= table.length)
+            table = Arrays.copyOf(table, Math.max(c + 1, 2 * table.length));
+        for (; size <= c; size++)
+            table[size] = table[size - 1] + Math.log(size - 1 + a);
+    }
+}
@@ -0,0 +1,27 @@
+package util;
+
+/**
+ * Source of uniform random numbers for the samplers. Implementations need
+ * not be thread-safe: every sampling thread gets its own stream from
+ * {@link #split()}.
+ * 
+ * @author Yang Zhou
+ * 
+ */
+public interface RandomSource {
+    /**
+     * @return uniform double in [0, 1)
+     */
+    double nextDouble();
+
+    /**
+     * @return uniform int in [0, n)
+     */
+    int nextInt(int n);
+
+    /**
+     * Hand off an independent stream, e.g. for a worker thread. Splitting in
+     * the same order from the same seed gives the same streams.
+     */
+    RandomSource split();
+}
@@ -9,6 +9,56 @@ public abstract class Utils {
 
     public static final String PUNCTUATION = " !\"#$%&\'()*+,-./:;<=>?@[\\]^_`{|}~";
 
+    /**
+     * Up to this many entries a linear scan of a cumulative distribution
+     * beats bisection.
+     */
+    public static final int LINEAR_SEARCH_MAX = 32;
+
+    /**
+     * Index of the first entry of the non-decreasing cumulative[0..n) that
+     * is greater than u, or n - 1 if there is none. Short arrays are scanned,
+     * longer ones bisected.
+     */
+    public static int search(double[] cumulative, int n, double u) {
+        if (n <= LINEAR_SEARCH_MAX) {
+            int i = 0;
+            while (i < n - 1 && u >= cumulative[i])
+                i++;
+            return i;
+        }
+        int lo = 0, hi = n - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (u < cumulative[mid])
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+        return lo;
+    }
+
+    /**
+     * Single-precision variant of {@link #search(double[], int, double)}.
+     */
+    public static int search(float[] cumulative, int n, float u) {
+        if (n <= LINEAR_SEARCH_MAX) {
+            int i = 0;
+            while (i < n - 1 && u >= cumulative[i])
+                i++;
+            return i;
+        }
+        int lo = 0, hi = n - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (u < cumulative[mid])
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+        return lo;
+    }
+
     public static String read(String path) throws IOException {
         return Utils.read(new File(path));
     }
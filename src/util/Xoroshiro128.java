@@ -0,0 +1,77 @@
+package util;
+
+/**
+ * xoroshiro128+ generator (Blackman and Vigna 2018). Much faster than
+ * java.util.Random and free of its shared atomic seed. split() hands the
+ * current state to the new stream and jumps this one 2^64 steps ahead, so
+ * split streams never overlap.
+ * 
+ * @author Yang Zhou
+ * 
+ */
+public class Xoroshiro128 implements RandomSource {
+    private static final long[] JUMP = { 0xdf900294d8f554a5L, 0x170865df4b3201fcL };
+
+    private long s0;
+    private long s1;
+
+    public Xoroshiro128(long seed) {
+        // expand the seed with SplitMix64
+        s0 = mix(seed += 0x9e3779b97f4a7c15L);
+        s1 = mix(seed + 0x9e3779b97f4a7c15L);
+        if ((s0 | s1) == 0)
+            s1 = 1;
+    }
+
+    private Xoroshiro128(long s0, long s1) {
+        this.s0 = s0;
+        this.s1 = s1;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    public long nextLong() {
+        long a = s0, b = s1;
+        long result = a + b;
+        b ^= a;
+        s0 = Long.rotateLeft(a, 24) ^ b ^ (b << 16);
+        s1 = Long.rotateLeft(b, 37);
+        return result;
+    }
+
+    @Override
+    public double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    @Override
+    public int nextInt(int n) {
+        return (int) (((nextLong() >>> 33) * n) >>> 31);
+    }
+
+    @Override
+    public RandomSource split() {
+        Xoroshiro128 child = new Xoroshiro128(s0, s1);
+        jump();
+        return child;
+    }
+
+    private void jump() {
+        long j0 = 0, j1 = 0;
+        for (long jump : JUMP) {
+            for (int b = 0; b < 64; b++) {
+                if ((jump & (1L << b)) != 0) {
+                    j0 ^= s0;
+                    j1 ^= s1;
+                }
+                nextLong();
+            }
+        }
+        s0 = j0;
+        s1 = j1;
+    }
+}